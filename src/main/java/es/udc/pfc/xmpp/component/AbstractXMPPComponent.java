@@ -18,25 +18,50 @@ package es.udc.pfc.xmpp.component;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timer;
 
+import com.google.common.base.Functions;
 import com.google.common.base.Strings;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
+import es.udc.pfc.xmpp.handler.PrioritizedMessage;
+import es.udc.pfc.xmpp.handler.PriorityWriteHandler;
+import es.udc.pfc.xmpp.handler.WriteCoalescingHandler;
+import es.udc.pfc.xmpp.handler.WritePriority;
+import es.udc.pfc.xmpp.handler.XMPPStreamHandler;
 import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.IQIdGenerator;
 import es.udc.pfc.xmpp.stanza.JID;
 import es.udc.pfc.xmpp.stanza.Message;
 import es.udc.pfc.xmpp.stanza.Presence;
 import es.udc.pfc.xmpp.stanza.Stanza;
+import es.udc.pfc.xmpp.xml.PatchableElement;
+import es.udc.pfc.xmpp.xml.XMLElement;
+import es.udc.pfc.xmpp.xml.XMLTemplate;
 
 /**
  * Basic implementation of an XMPP component.
@@ -45,25 +70,132 @@ public abstract class AbstractXMPPComponent implements XMPPComponent {
 	
 	protected static final Logger log = Logger.getLogger(XMPPComponent.class.getName());
 
-	private final Map<String, SettableFuture<IQ>> futureHandlers;
+	private static final long DEFAULT_IQ_TIMEOUT = 30;
+	
+	private final IQIdGenerator idGenerator;
+	private final Map<IQ.Type, Table<String, String, IQHandler>> iqHandlers;
 	
-	private Channel channel;
+	private List<Channel> channels;
+	private List<XMPPStreamHandler> streams;
+	private IQCorrelationTable pendingIQs;
 	private JID componentID;
 	private JID serverID;
+	private long iqTimeout;
+	private TimeUnit iqTimeoutUnit;
 	
 	protected AbstractXMPPComponent() {
-		futureHandlers = Maps.newHashMap();
+		this(IQIdGenerator.getDefault());
+	}
+	
+	/**
+	 * Creates a component whose IQ requests get their IDs from the given generator.
+	 * 
+	 * Responses to IDs from this generator are matched by their numeric value.
+	 * 
+	 * @param idGenerator the generator of IQ IDs
+	 * @see #newIQ(IQ.Type)
+	 */
+	protected AbstractXMPPComponent(final IQIdGenerator idGenerator) {
+		this.idGenerator = checkNotNull(idGenerator);
+		iqHandlers = Maps.newEnumMap(IQ.Type.class);
+		iqHandlers.put(IQ.Type.get, HashBasedTable.<String, String, IQHandler> create());
+		iqHandlers.put(IQ.Type.set, HashBasedTable.<String, String, IQHandler> create());
+		iqTimeout = DEFAULT_IQ_TIMEOUT;
+		iqTimeoutUnit = TimeUnit.SECONDS;
 	}
 	
 	protected abstract void handleMessage(Message message);
 	protected abstract void handlePresence(Presence presence);
-	protected abstract ListenableFuture<IQ> handleIQ(IQ iq);
+	
+	/**
+	 * Handles IQ requests with no registered handler.
+	 * 
+	 * By default, these get a <i>service-unavailable</i> error.
+	 * 
+	 * @param iq the IQ request
+	 * @return a Future with the response to send
+	 * @see #registerIQHandler(String, String, IQ.Type, IQHandler)
+	 */
+	protected ListenableFuture<IQ> handleIQ(final IQ iq) {
+		return Futures.immediateFuture(iq.createError("cancel", "service-unavailable"));
+	}
+	
+	/**
+	 * Registers a handler for IQ requests with the given payload.
+	 * 
+	 * Requests are dispatched by the name and namespace of their first
+	 * child element, and their type, with a single lookup. Requests which
+	 * match no handler are passed to {@link #handleIQ(IQ)}.
+	 * 
+	 * Handlers must be registered before the component is connected.
+	 * 
+	 * @param name the name of the payload element, such as <i>query</i>
+	 * @param namespace the namespace of the payload element
+	 * @param type the type of the requests, either <i>get</i> or <i>set</i>
+	 * @param handler the handler for the requests
+	 */
+	protected final void registerIQHandler(final String name, final String namespace, final IQ.Type type, final IQHandler handler) {
+		checkNotNull(name);
+		checkNotNull(namespace);
+		checkArgument(type == IQ.Type.get || type == IQ.Type.set, "Not a request type");
+		checkNotNull(handler);
+		checkState(channels == null, "Component already connected");
+		
+		iqHandlers.get(type).put(namespace, name, handler);
+	}
 	
 	@Override
-	public final void init(final Channel channel, final JID serverID, final JID componentID) {
-		this.channel = checkNotNull(channel);
+	public final void init(final List<Channel> channels, final Timer timer, final JID serverID, final JID componentID) {
+		checkArgument(!channels.isEmpty(), "No channels");
+		this.channels = ImmutableList.copyOf(channels);
+		final ImmutableList.Builder<XMPPStreamHandler> streams = ImmutableList.builder();
+		for (final Channel channel : this.channels) {
+			streams.add(checkNotNull(channel.getPipeline().get(XMPPStreamHandler.class), "No stream handler"));
+		}
+		this.streams = streams.build();
 		this.componentID = checkNotNull(componentID);
 		this.serverID = checkNotNull(serverID);
+		
+		pendingIQs = new IQCorrelationTable(timer, idGenerator);
+		final ChannelFutureListener closeListener = new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				// Responses can arrive through any connection, until all of them are closed
+				for (final Channel channel : AbstractXMPPComponent.this.channels) {
+					if (channel.isOpen())
+						return;
+				}
+				pendingIQs.failAll(new IllegalStateException("Disconnected"));
+			}
+		};
+		for (final Channel channel : this.channels) {
+			channel.getCloseFuture().addListener(closeListener);
+		}
+	}
+	
+	/**
+	 * Creates a new IQ with an ID from the generator of this component.
+	 * 
+	 * @param type the type for the new IQ
+	 * @return the new IQ
+	 */
+	public final IQ newIQ(final IQ.Type type) {
+		return new IQ(type, idGenerator);
+	}
+	
+	/**
+	 * Sets how long IQ requests wait for their response by default.
+	 * 
+	 * Requests which get no response in time fail with a
+	 * {@link java.util.concurrent.TimeoutException}. The default is 30 seconds.
+	 * 
+	 * @param timeout the time to wait for a response
+	 * @param unit the unit of the timeout
+	 */
+	public final void setIQTimeout(final long timeout, final TimeUnit unit) {
+		checkArgument(timeout > 0, "Non-positive timeout");
+		this.iqTimeoutUnit = checkNotNull(unit);
+		this.iqTimeout = timeout;
 	}
 	
 	@Override
@@ -79,27 +211,34 @@ public abstract class AbstractXMPPComponent implements XMPPComponent {
 	@Override
 	public final void receivedMessage(final Message message) {
 		checkNotNull(message);
-		log.finest("Received message: " + message.toString());
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Received message: " + message.toString());
+		}
 		handleMessage(message);
 	}
 	
 	@Override
 	public final void receivedPresence(final Presence presence) {
 		checkNotNull(presence);
-		log.finest("Received presence: " + presence.toString());
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Received presence: " + presence.toString());
+		}
 		handlePresence(presence);
 	}
 	
 	@Override
 	public final void receivedIQ(final IQ iq) {
 		checkNotNull(iq);
-		log.finest("Received iq: " + iq.toString());
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Received iq: " + iq.toString());
+		}
 		if (iq.isRequest()) {
-			Futures.addCallback(handleIQ(iq), new FutureCallback<IQ>() {
+			Futures.addCallback(dispatchIQ(iq), new FutureCallback<IQ>() {
 
 				@Override
 				public void onSuccess(IQ result) {
 					send(result);
+					flush();
 				}
 
 				@Override
@@ -109,14 +248,18 @@ public abstract class AbstractXMPPComponent implements XMPPComponent {
 			});
 		}
 		else if (iq.isResponse()) {
-			final SettableFuture<IQ> future = futureHandlers.remove(iq.getId());
+			final SettableFuture<IQ> future = pendingIQs.remove(iq.getId());
 			if (future == null) {
 				log.warning("No handler for ID " + iq.getId());
 				return;
 			}
 			
 			if (iq.getType() == IQ.Type.result) {
-				future.set(iq);
+				// The response outlives this callback, until the caller releases it
+				iq.retain();
+				if (!future.set(iq)) {
+					iq.release();
+				}
 			}
 			else if (iq.getType() == IQ.Type.error) {
 				future.setException(new Exception("Error IQ: " + iq.toString()));
@@ -127,43 +270,292 @@ public abstract class AbstractXMPPComponent implements XMPPComponent {
 		}
 	}
 
+	private ListenableFuture<IQ> dispatchIQ(final IQ iq) {
+		final XMLElement payload = iq.getPayload();
+		if (payload != null) {
+			final IQHandler handler = iqHandlers.get(iq.getType()).get(payload.getNamespace(), payload.getTagName());
+			if (handler != null)
+				return handler.handleIQ(iq);
+		}
+		
+		return handleIQ(iq);
+	}
+
 	/**
 	 * Send a Stanza to the server.
 	 * 
+	 * Stanzas are queued if the server is slow to read them, so components
+	 * which send many stanzas should check {@link #isWritable()} or wait for
+	 * the returned Future.
+	 * 
 	 * @param stanza the Stanza to be sent
+	 * @return a Future which completes when the stanza is written
 	 */
-	public final void send(final Stanza stanza) {
+	public final ListenableFuture<Void> send(final Stanza stanza) {
 		checkNotNull(stanza);
-		if (channel == null || !channel.isConnected()) {
+		final Channel channel = channelFor(stanza.getTo());
+		if (channel == null) {
 			log.warning("Disconnected, can't send stanza: " + stanza.toString());
-			return;
+			return Futures.immediateFailedFuture(new IllegalStateException("Disconnected"));
+		}
+		
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Sending stanza: " + stanza.toString());
+		}
+		return write(channel, stanza, null);
+	}
+	
+	/**
+	 * Send a Stanza to the server, with the given priority.
+	 * 
+	 * The priority only has effect if prioritized writes are enabled.
+	 * 
+	 * @param stanza the Stanza to be sent
+	 * @param priority the priority class of the stanza, instead of its default one
+	 * @return a Future which completes when the stanza is written
+	 * @see ComponentService#setPrioritizedWrites(boolean)
+	 */
+	public final ListenableFuture<Void> send(final Stanza stanza, final WritePriority priority) {
+		checkNotNull(stanza);
+		checkNotNull(priority);
+		final Channel channel = channelFor(stanza.getTo());
+		if (channel == null) {
+			log.warning("Disconnected, can't send stanza: " + stanza.toString());
+			return Futures.immediateFailedFuture(new IllegalStateException("Disconnected"));
+		}
+		
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Sending stanza with priority " + priority + ": " + stanza.toString());
+		}
+		return write(channel, stanza, priority);
+	}
+	
+	/**
+	 * Send a stanza from a template.
+	 * 
+	 * The stanza is written straight from the pre-encoded template, without
+	 * building it first.
+	 * 
+	 * @param template the template of the stanza
+	 * @param values the value of each hole in the template, by name
+	 * @return a Future which completes when the stanza is written
+	 * @see XMLTemplate#apply(Map)
+	 */
+	public final ListenableFuture<Void> send(final XMLTemplate template, final Map<String, String> values) {
+		checkNotNull(template);
+		checkNotNull(values);
+		final Channel channel = channelFor(JID.jid(values.get("to")));
+		if (channel == null) {
+			log.warning("Disconnected, can't send template: " + template.toString());
+			return Futures.immediateFailedFuture(new IllegalStateException("Disconnected"));
+		}
+		
+		final ChannelBuffer buffer = template.apply(values);
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Sending stanza: " + buffer.toString(CharsetUtil.UTF_8));
+		}
+		return write(channel, buffer, null);
+	}
+	
+	/**
+	 * Send the same Stanza to many recipients.
+	 * 
+	 * The stanza is serialized only once, and then written with the address
+	 * of each recipient, which is much cheaper than sending a copy to each of
+	 * them. The stanza itself is not modified, but it must not be used by
+	 * other threads until this returns. Broadcasts are sent as
+	 * {@link WritePriority#BULK bulk} traffic.
+	 * 
+	 * @param stanza the Stanza to be sent
+	 * @param recipients the addresses to send it to
+	 * @return a Future which completes when the stanza is written to every recipient
+	 */
+	public final ListenableFuture<Void> broadcast(final Stanza stanza, final Iterable<JID> recipients) {
+		checkNotNull(stanza);
+		checkNotNull(recipients);
+		final Channel anyChannel = channelFor(null);
+		if (anyChannel == null) {
+			log.warning("Disconnected, can't broadcast stanza: " + stanza.toString());
+			return Futures.immediateFailedFuture(new IllegalStateException("Disconnected"));
 		}
 		
-		log.finest("Sending stanza: " + stanza.toString());
-		Channels.write(channel, stanza);
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Broadcasting stanza: " + stanza.toString());
+		}
+		
+		final PatchableElement element = PatchableElement.of(stanza.getXML(), "to", anyChannel.getPipeline().get(XMPPStreamHandler.class).getStreamNamespace());
+		final List<ListenableFuture<Void>> writes = Lists.newArrayList();
+		for (final JID recipient : recipients) {
+			final Channel channel = channelFor(recipient);
+			if (channel == null) {
+				writes.add(Futures.<Void> immediateFailedFuture(new IllegalStateException("Disconnected")));
+				continue;
+			}
+			writes.add(write(channel, element.withValue(recipient.toString()), WritePriority.BULK));
+		}
+		return Futures.transform(Futures.allAsList(writes), Functions.<Void> constant(null));
+	}
+	
+	/**
+	 * Returns the connection which stanzas to the given address are sent through.
+	 * 
+	 * Addresses are spread over the connections by their bare JID, so the
+	 * stanzas to each of them keep their order. If that connection is not
+	 * logged in, the next one which is is used.
+	 * 
+	 * @param to the recipient, or {@code null} if none
+	 * @return a logged in channel, or {@code null} if none is
+	 */
+	@Nullable
+	private Channel channelFor(@Nullable final JID to) {
+		if (channels == null)
+			return null;
+		
+		final int size = channels.size();
+		final int shard = to != null ? (to.getBareJID().hashCode() & Integer.MAX_VALUE) % size : 0;
+		for (int i = 0; i < size; i++) {
+			if (isReady((shard + i) % size))
+				return channels.get((shard + i) % size);
+		}
+		return null;
+	}
+	
+	private boolean isReady(final int index) {
+		return streams.get(index).isReady() && channels.get(index).isConnected();
+	}
+	
+	private ListenableFuture<Void> write(final Channel channel, final Object message, @Nullable final WritePriority priority) {
+		final boolean prioritized = priority != null && channel.getPipeline().get(PriorityWriteHandler.class) != null;
+		
+		final SettableFuture<Void> written = SettableFuture.create();
+		Channels.write(channel, prioritized ? new PrioritizedMessage(message, priority) : message).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (future.isSuccess()) {
+					written.set(null);
+				}
+				else if (future.isCancelled()) {
+					written.cancel(false);
+				}
+				else {
+					written.setException(future.getCause());
+				}
+			}
+		});
+		return written;
+	}
+	
+	/**
+	 * Returns whether stanzas can be sent without queueing too much data.
+	 * 
+	 * @return {@code true} if connected and the outbound buffers of every connection are below their high water mark
+	 * @see XMPPComponent#writabilityChanged(Channel, boolean)
+	 */
+	public final boolean isWritable() {
+		if (channels == null)
+			return false;
+		
+		boolean connected = false;
+		for (int i = 0; i < channels.size(); i++) {
+			if (isReady(i)) {
+				if (!channels.get(i).isWritable())
+					return false;
+				connected = true;
+			}
+		}
+		return connected;
+	}
+	
+	/**
+	 * Returns whether stanzas to an address can be sent without queueing too much data.
+	 * 
+	 * @param to the recipient of the stanzas
+	 * @return {@code true} if the connection for the recipient is below its high water mark
+	 * @see #isWritable()
+	 */
+	public final boolean isWritable(final JID to) {
+		final Channel channel = channelFor(checkNotNull(to));
+		return channel != null && channel.isWritable();
 	}
 	
 	/**
 	 * Send an IQ request, handling the response using a Future.
 	 * 
+	 * If the request can't be written, the Future fails right away. If no
+	 * response arrives within the {@link #setIQTimeout(long, TimeUnit) IQ timeout},
+	 * it fails with a {@link java.util.concurrent.TimeoutException}.
+	 * 
+	 * The response is retained for the caller, so if it's pooled, the caller
+	 * must {@link IQ#release() release} it once it's no longer needed.
+	 * 
 	 * @param iq the IQ request to be sent
 	 * @return a Future 
 	 */
 	public final ListenableFuture<IQ> sendIQ(final IQ iq) {
+		return sendIQ(iq, iqTimeout, iqTimeoutUnit);
+	}
+	
+	/**
+	 * Send an IQ request, handling the response using a Future.
+	 * 
+	 * @param iq the IQ request to be sent
+	 * @param timeout the time to wait for the response
+	 * @param unit the unit of the timeout
+	 * @return a Future 
+	 * @see #sendIQ(IQ)
+	 */
+	public final ListenableFuture<IQ> sendIQ(final IQ iq, final long timeout, final TimeUnit unit) {
 		checkNotNull(iq);
 		checkArgument(iq.isRequest() && !Strings.isNullOrEmpty(iq.getId()));
+		checkArgument(timeout > 0, "Non-positive timeout");
+		checkNotNull(unit);
+		if (pendingIQs == null) {
+			log.warning("Disconnected, can't send stanza: " + iq.toString());
+			return Futures.immediateFailedFuture(new IllegalStateException("Disconnected"));
+		}
 		
-		if (futureHandlers.containsKey(iq.getId())) {
+		final SettableFuture<IQ> future = SettableFuture.create();
+		final SettableFuture<IQ> pending = pendingIQs.putIfAbsent(iq.getId(), future, timeout, unit);
+		if (pending != null) {
 			log.warning("ID " + iq.getId() + " already being handled.");
-			return futureHandlers.get(iq.getId());
+			return pending;
 		}
-			
-		final SettableFuture<IQ> future = SettableFuture.create();
-		futureHandlers.put(iq.getId(), future);
-		send(iq);
+		
+		Futures.addCallback(send(iq), new FutureCallback<Void>() {
+
+			@Override
+			public void onSuccess(Void result) {
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (pendingIQs.remove(iq.getId(), future)) {
+					future.setException(t);
+				}
+			}
+		});
+		flush();
 		return future;
 	}
 	
+	/**
+	 * Writes any stanzas held back by write coalescing.
+	 * 
+	 * IQ requests and responses are flushed automatically, as the other
+	 * side is waiting for them. This has no effect if coalescing is disabled.
+	 */
+	public final void flush() {
+		if (channels == null)
+			return;
+		
+		for (final Channel channel : channels) {
+			final WriteCoalescingHandler coalescer = channel.getPipeline().get(WriteCoalescingHandler.class);
+			if (coalescer != null) {
+				coalescer.flush();
+			}
+		}
+	}
+	
 	@Override
 	public void connected() {
 		log.fine("Connected");
@@ -179,4 +571,9 @@ public abstract class AbstractXMPPComponent implements XMPPComponent {
 		log.fine("Disconnected");
 	}
 	
+	@Override
+	public void writabilityChanged(Channel channel, boolean writable) {
+		log.fine((writable ? "Writable: " : "Not writable: ") + channel);
+	}
+	
 }
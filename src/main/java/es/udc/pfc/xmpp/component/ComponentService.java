@@ -16,15 +16,22 @@
 
 package es.udc.pfc.xmpp.component;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import java.net.SocketAddress;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
@@ -32,84 +39,416 @@ import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
+import com.google.common.base.Function;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 
+import es.udc.pfc.xmpp.handler.KeyedExecutionHandler;
+import es.udc.pfc.xmpp.handler.PriorityWriteHandler;
+import es.udc.pfc.xmpp.handler.StanzaLimits;
+import es.udc.pfc.xmpp.handler.StreamingConsumer;
+import es.udc.pfc.xmpp.handler.WriteCoalescingHandler;
+import es.udc.pfc.xmpp.handler.WritePriority;
 import es.udc.pfc.xmpp.handler.XEP0114Decoder;
-import es.udc.pfc.xmpp.handler.XMLElementDecoder;
-import es.udc.pfc.xmpp.handler.XMLFrameDecoder;
+import es.udc.pfc.xmpp.handler.XMLStanzaDecoder;
 import es.udc.pfc.xmpp.handler.XMPPStreamHandler;
 import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Stanza;
+import es.udc.pfc.xmpp.xml.XMLModel;
 
 public class ComponentService extends AbstractExecutionThreadService {
 
+	private static final int DEFAULT_EXECUTOR_THREADS = 4;
+	private static final int DEFAULT_CONNECTIONS = 1;
+	/** The time, in milliseconds, the server is given to close the stream once asked to. */
+	private static final long CLOSE_TIMEOUT = 5000;
+
 	private final XMPPComponent component;
 	private final SocketAddress serverAddress;
 	private final String xmppHost;
 	private final String xmppSecret;
+	private final Table<String, String, StreamingConsumer> streamingConsumers;
+
+	private StanzaLimits stanzaLimits;
+	private boolean lazyStanzas;
+	private boolean rawPassthrough;
+	private boolean pooledStanzas;
+	private boolean batchedDelivery;
+	private long coalescingDelay;
+	private int coalescingBytes;
+	private int writeBufferLowWaterMark;
+	private int writeBufferHighWaterMark;
+	private boolean prioritizedWrites;
+	private int executorThreads;
+	private Function<? super Stanza, ?> orderingKey;
+	private int connections;
 
 	private ExecutionHandler executionHandler;
+	private Timer timer;
 	private ClientBootstrap bootstrap;
-	private Channel channel;
+	private List<Channel> channels;
 
 	public ComponentService(XMPPComponent component, SocketAddress serverAddress, String xmppHost, String xmppSecret) {
 		this.component = checkNotNull(component);
 		this.serverAddress = checkNotNull(serverAddress);
 		this.xmppHost = checkNotNull(xmppHost);
 		this.xmppSecret = checkNotNull(xmppSecret);
+
+		stanzaLimits = StanzaLimits.DEFAULT;
+		executorThreads = DEFAULT_EXECUTOR_THREADS;
+		connections = DEFAULT_CONNECTIONS;
+		streamingConsumers = HashBasedTable.create();
+	}
+
+	/**
+	 * Sets the limits enforced on received stanzas.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param stanzaLimits the new limits
+	 */
+	public final void setStanzaLimits(final StanzaLimits stanzaLimits) {
+		checkState(state() == State.NEW, "Service already started");
+		this.stanzaLimits = checkNotNull(stanzaLimits);
+	}
+
+	/**
+	 * Sets whether received stanzas should be built lazily.
+	 * 
+	 * Lazy stanzas only parse their start tag, so their addresses, ID and
+	 * type are available right away, and their contents are built the first
+	 * time they are needed. Lazy stanzas can't be pooled or streamed.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param lazyStanzas {@code true} to build received stanzas lazily
+	 * @throws IllegalStateException if pooled stanzas or streaming consumers are set
+	 */
+	public final void setLazyStanzas(final boolean lazyStanzas) {
+		checkState(state() == State.NEW, "Service already started");
+		checkState(!lazyStanzas || !pooledStanzas, "Lazy stanzas can't be pooled");
+		checkState(!lazyStanzas || streamingConsumers.isEmpty(), "Lazy stanzas can't be streamed");
+		this.lazyStanzas = lazyStanzas;
+	}
+
+	/**
+	 * Sets whether received stanzas should keep their original bytes.
+	 * 
+	 * Stanzas which are sent again without being modified, such as forwarded
+	 * ones, are then written as they were received instead of being serialized.
+	 * Lazy stanzas always keep their bytes. Stanzas which keep their bytes
+	 * can't be streamed.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param rawPassthrough {@code true} to keep the original bytes of received stanzas
+	 * @throws IllegalStateException if streaming consumers are set
+	 */
+	public final void setRawPassthrough(final boolean rawPassthrough) {
+		checkState(state() == State.NEW, "Service already started");
+		checkState(!rawPassthrough || streamingConsumers.isEmpty(), "Stanzas which keep their bytes can't be streamed");
+		this.rawPassthrough = rawPassthrough;
+	}
+
+	/**
+	 * Sets whether received stanzas should be built from pooled elements.
+	 * 
+	 * Pooled stanzas are recycled as soon as the component callback which
+	 * received them returns. Components which keep a stanza, or any of its
+	 * elements, after that must {@link Stanza#retain() retain} it and
+	 * {@link Stanza#release() release} it once done. Lazy stanzas can't be
+	 * pooled.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param pooledStanzas {@code true} to recycle received stanzas
+	 * @throws IllegalStateException if lazy stanzas are set
+	 */
+	public final void setPooledStanzas(final boolean pooledStanzas) {
+		checkState(state() == State.NEW, "Service already started");
+		checkState(!pooledStanzas || !lazyStanzas, "Lazy stanzas can't be pooled");
+		this.pooledStanzas = pooledStanzas;
+	}
+
+	/**
+	 * Sets whether all stanzas received in a single read should be delivered together.
+	 * 
+	 * Batched stanzas are handed to the component in order, in a single
+	 * executor task, which saves an event and a task per stanza under bursty
+	 * load.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param batchedDelivery {@code true} to deliver stanzas in batches
+	 */
+	public final void setBatchedDelivery(final boolean batchedDelivery) {
+		checkState(state() == State.NEW, "Service already started");
+		this.batchedDelivery = batchedDelivery;
+	}
+
+	/**
+	 * Enables coalescing of outbound writes.
+	 * 
+	 * Stanzas sent within a short time are written to the socket together,
+	 * once they add up to the given number of bytes or the first of them
+	 * has waited for the given delay. Components can flush them sooner with
+	 * {@link AbstractXMPPComponent#flush()}.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param maxDelay the maximum time a stanza can wait, in milliseconds
+	 * @param maxBytes the number of bytes which are written without waiting
+	 * @see WriteCoalescingHandler
+	 */
+	public final void setWriteCoalescing(final long maxDelay, final int maxBytes) {
+		checkState(state() == State.NEW, "Service already started");
+		checkArgument(maxDelay > 0, "Non-positive delay");
+		checkArgument(maxBytes > 0, "Non-positive byte threshold");
+		this.coalescingDelay = maxDelay;
+		this.coalescingBytes = maxBytes;
+	}
+
+	/**
+	 * Sets the water marks of the outbound write buffer.
+	 * 
+	 * Once more than the high water mark is waiting to be written, the
+	 * channel stops being writable, and the component is notified through
+	 * {@link XMPPComponent#writabilityChanged(Channel, boolean)} so it can stop
+	 * producing stanzas. It becomes writable again when the pending data
+	 * drops below the low water mark.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param low the low water mark, in bytes
+	 * @param high the high water mark, in bytes
+	 */
+	public final void setWriteBufferWaterMarks(final int low, final int high) {
+		checkState(state() == State.NEW, "Service already started");
+		checkArgument(low >= 0, "Negative low water mark");
+		checkArgument(high > 0 && high >= low, "High water mark must be positive and not less than the low one");
+		this.writeBufferLowWaterMark = low;
+		this.writeBufferHighWaterMark = high;
+	}
+
+	/**
+	 * Sets whether outbound stanzas should be scheduled by priority.
+	 * 
+	 * While the channel is not writable, stanzas are held back and sent in
+	 * weighted rounds by {@link WritePriority}, so IQs and presences are not
+	 * stuck behind bulk messages. Otherwise, everything is sent in order.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param prioritizedWrites {@code true} to schedule outbound stanzas by priority
+	 * @see #setWriteBufferWaterMarks(int, int)
+	 * @see PriorityWriteHandler
+	 */
+	public final void setPrioritizedWrites(final boolean prioritizedWrites) {
+		checkState(state() == State.NEW, "Service already started");
+		this.prioritizedWrites = prioritizedWrites;
+	}
+
+	/**
+	 * Sets the number of threads which call the component.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param executorThreads the number of threads
+	 */
+	public final void setExecutorThreads(final int executorThreads) {
+		checkState(state() == State.NEW, "Service already started");
+		checkArgument(executorThreads > 0, "Non-positive thread count");
+		this.executorThreads = executorThreads;
+	}
+
+	/**
+	 * Sets the key which received stanzas are kept in order by.
+	 * 
+	 * By default, every event of the connection is handled in order, so the
+	 * component is only called by one thread at a time. With a key, such as
+	 * {@link KeyedExecutionHandler#SENDER_BARE_JID the sender}, stanzas with
+	 * the same key are still handled in order, but stanzas with different
+	 * keys are handled in parallel by all the executor threads, so the
+	 * component must be thread-safe.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param orderingKey the function which returns the key of a stanza, or {@code null} to order by connection
+	 * @see #setExecutorThreads(int)
+	 * @see KeyedExecutionHandler
+	 */
+	public final void setOrderingKey(@Nullable final Function<? super Stanza, ?> orderingKey) {
+		checkState(state() == State.NEW, "Service already started");
+		this.orderingKey = orderingKey;
+	}
+
+	/**
+	 * Sets the number of connections the component uses.
+	 * 
+	 * Servers which accept several connections for the same component can
+	 * take more traffic through them. Stanzas are sent through the
+	 * connection picked by the bare JID of their recipient, so stanzas to
+	 * each address are still sent in order. If that connection is lost,
+	 * the stanzas go through the next one instead.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param connections the number of connections
+	 */
+	public final void setConnections(final int connections) {
+		checkState(state() == State.NEW, "Service already started");
+		checkArgument(connections > 0, "Non-positive connection count");
+		this.connections = connections;
+	}
+
+	/**
+	 * Streams the text of the elements with the given name and namespace.
+	 * 
+	 * The text of matching elements inside received stanzas is written to
+	 * the consumer as it's parsed, and the stanza is delivered without it.
+	 * Streaming can't be used with lazy stanzas or raw passthrough.
+	 * 
+	 * This must be called before the service is started.
+	 * 
+	 * @param name the name of the elements to stream
+	 * @param namespace the namespace of the elements to stream
+	 * @param consumer the consumer for their text
+	 * @throws IllegalStateException if lazy stanzas or raw passthrough are set
+	 * @see XMLStanzaDecoder#addStreamingConsumer(String, String, StreamingConsumer)
+	 */
+	public final void addStreamingConsumer(final String name, final String namespace, final StreamingConsumer consumer) {
+		checkState(state() == State.NEW, "Service already started");
+		checkState(!lazyStanzas && !rawPassthrough, "Lazy stanzas and stanzas which keep their bytes can't be streamed");
+		streamingConsumers.put(checkNotNull(namespace), checkNotNull(name), checkNotNull(consumer));
 	}
 
 	@Override
 	protected void startUp() throws Exception {
-		executionHandler = new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(4, 0, 0));
+		if (orderingKey != null) {
+			executionHandler = new KeyedExecutionHandler(Executors.newFixedThreadPool(executorThreads), orderingKey);
+		} else {
+			executionHandler = new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(executorThreads, 0, 0));
+		}
+		// Coalescing needs a fine tick, while IQ timeouts are fine with the default one
+		timer = coalescingDelay > 0 ? new HashedWheelTimer(1, TimeUnit.MILLISECONDS) : new HashedWheelTimer();
 		bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		if (writeBufferHighWaterMark > 0) {
+			bootstrap.setOption("writeBufferLowWaterMark", writeBufferLowWaterMark);
+			bootstrap.setOption("writeBufferHighWaterMark", writeBufferHighWaterMark);
+		}
 		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 			@Override
 			public ChannelPipeline getPipeline() throws Exception {
 				final ChannelPipeline pipeline = Channels.pipeline();
 
 				//pipeline.addLast("logger", new LoggingHandler(InternalLogLevel.INFO));
-				pipeline.addLast("xmlFramer", new XMLFrameDecoder());
-				pipeline.addLast("xmlDecoder", new XMLElementDecoder());
+				final boolean compact = pooledStanzas || !streamingConsumers.isEmpty();
+				final XMLStanzaDecoder xmlDecoder = new XMLStanzaDecoder(1, stanzaLimits, compact ? XMLModel.COMPACT : XMLModel.getDefault());
+				xmlDecoder.setLazy(lazyStanzas);
+				xmlDecoder.setPooled(pooledStanzas);
+				xmlDecoder.setBatching(batchedDelivery);
+				for (final Table.Cell<String, String, StreamingConsumer> consumer : streamingConsumers.cellSet()) {
+					xmlDecoder.addStreamingConsumer(consumer.getColumnKey(), consumer.getRowKey(), consumer.getValue());
+				}
+				xmlDecoder.setKeepingRawBytes(rawPassthrough);
+
+				if (coalescingDelay > 0) {
+					pipeline.addLast("writeCoalescer", new WriteCoalescingHandler(timer, coalescingDelay, TimeUnit.MILLISECONDS, coalescingBytes));
+				}
+				pipeline.addLast("xmlDecoder", xmlDecoder);
 				pipeline.addLast("xmppDecoder", new XEP0114Decoder(xmppHost, xmppSecret));
 				pipeline.addLast("executor", executionHandler);
+				if (prioritizedWrites) {
+					pipeline.addLast("priorityWriter", new PriorityWriteHandler());
+				}
 				pipeline.addLast("xmppHandler", new XMPPStreamHandler(component));
 				return pipeline;
 			}
 		});
 
-		final ChannelFuture future = bootstrap.connect(serverAddress).await();
-		if (!future.isSuccess()) {
-			bootstrap.releaseExternalResources();
-			executionHandler.releaseExternalResources();
-			future.rethrowIfFailed();
+		// The channels are given to the component before any of them can log in
+		final ImmutableList.Builder<Channel> created = ImmutableList.builder();
+		for (int i = 0; i < connections; i++) {
+			final Channel channel = bootstrap.getFactory().newChannel(bootstrap.getPipelineFactory().getPipeline());
+			channel.getConfig().setOptions(bootstrap.getOptions());
+			created.add(channel);
+		}
+		channels = created.build();
+		component.init(channels, timer, JID.jid("localhost"), JID.jid(xmppHost)); // FIXME
+
+		for (final Channel channel : channels) {
+			final ChannelFuture future = channel.connect(serverAddress).await();
+			if (!future.isSuccess()) {
+				for (final Channel other : channels) {
+					other.close().awaitUninterruptibly();
+				}
+				bootstrap.releaseExternalResources();
+				executionHandler.releaseExternalResources();
+				timer.stop();
+				future.rethrowIfFailed();
+			}
 		}
-		channel = future.getChannel();
-		component.init(channel, JID.jid("localhost"), JID.jid(xmppHost)); // FIXME
 	}
 
 	@Override
 	protected void run() throws Exception {
-		channel.getCloseFuture().awaitUninterruptibly().rethrowIfFailed();
+		// Runs while any connection is left
+		for (final Channel channel : channels) {
+			channel.getCloseFuture().awaitUninterruptibly().rethrowIfFailed();
+		}
 	}
 
 	@Override
 	protected void shutDown() throws Exception {
 		bootstrap.releaseExternalResources();
 		executionHandler.releaseExternalResources();
+		timer.stop();
 	}
 
 	@Override
 	protected void triggerShutdown() {
-		if (channel != null && channel.isConnected()) {
-			Channels.disconnect(channel);
+		if (channels == null)
+			return;
+
+		for (final Channel channel : channels) {
+			if (!channel.isConnected())
+				continue;
+
+			// The stream end is written, but a server which never closes its side mustn't keep the service running
+			Channels.disconnect(channel).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(final ChannelFuture future) throws Exception {
+					if (!future.isSuccess()) {
+						channel.close();
+					}
+				}
+			});
+			timer.newTimeout(new TimerTask() {
+				@Override
+				public void run(final Timeout timeout) throws Exception {
+					channel.close();
+				}
+			}, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
 		}
 	}
 
 	public final void send(final String data) {
 		checkNotNull(data);
-		if (channel != null && channel.isConnected()) {
-			Channels.write(channel, ChannelBuffers.copiedBuffer(data, CharsetUtil.UTF_8));
+		if (channels == null)
+			return;
+
+		for (final Channel channel : channels) {
+			if (channel.isConnected() && channel.getPipeline().get(XMPPStreamHandler.class).isReady()) {
+				Channels.write(channel, ChannelBuffers.copiedBuffer(data, CharsetUtil.UTF_8));
+				return;
+			}
 		}
 	}
 
@@ -0,0 +1,357 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.component;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.IQIdGenerator;
+
+/**
+ * Pending IQ requests, by ID, waiting for their responses.
+ * 
+ * Each request has a deadline, kept in a {@link Timer}, so requests which
+ * get no response fail with a {@link TimeoutException} and are removed,
+ * instead of being kept forever. A hashed wheel timer keeps this cheap
+ * even with many outstanding requests.
+ * 
+ * IDs from the table's {@link IQIdGenerator} are keyed by their counter
+ * value in a map of primitive {@code long} keys, so responses are matched
+ * without hashing the whole ID or boxing the key. Any other IDs are kept
+ * in a separate map, keyed by the String itself.
+ * 
+ * This class is thread-safe.
+ */
+final class IQCorrelationTable {
+
+	private final Timer timer;
+	private final IQIdGenerator generator;
+	private final RequestMap generated;
+	private final ConcurrentMap<String, Request> foreign;
+
+	/**
+	 * Creates an empty table.
+	 * 
+	 * @param timer the timer used to expire requests
+	 * @param generator the generator of most request IDs
+	 */
+	IQCorrelationTable(final Timer timer, final IQIdGenerator generator) {
+		this.timer = checkNotNull(timer);
+		this.generator = checkNotNull(generator);
+		generated = new RequestMap();
+		foreign = Maps.newConcurrentMap();
+	}
+
+	/**
+	 * Adds a request, unless another one with the same ID is pending.
+	 * 
+	 * @param id the ID of the request
+	 * @param future the future to complete with the response
+	 * @param timeout the time to wait for the response
+	 * @param unit the unit of the timeout
+	 * @return the future of the pending request with the same ID, or {@code null} if added
+	 */
+	@Nullable
+	SettableFuture<IQ> putIfAbsent(final String id, final SettableFuture<IQ> future, final long timeout, final TimeUnit unit) {
+		checkNotNull(id);
+		checkNotNull(future);
+		checkArgument(timeout > 0, "Non-positive timeout");
+		checkNotNull(unit);
+
+		final Request request = new Request(id, generator.parse(id), future);
+		final Request pending = request.value >= 0 ? generated.putIfAbsent(request.value, request) : foreign.putIfAbsent(id, request);
+		if (pending != null)
+			return pending.future;
+
+		// If the response arrives first, the timeout just finds nothing to expire
+		request.timeout = timer.newTimeout(request, timeout, unit);
+		return null;
+	}
+
+	/**
+	 * Removes a pending request, to complete it with its response.
+	 * 
+	 * @param id the ID of the request
+	 * @return the future of the request, or {@code null} if none is pending
+	 */
+	@Nullable
+	SettableFuture<IQ> remove(final String id) {
+		final long value = generator.parse(checkNotNull(id));
+		final Request request = value >= 0 ? generated.remove(value) : foreign.remove(id);
+		if (request == null)
+			return null;
+
+		request.cancel();
+		return request.future;
+	}
+
+	/**
+	 * Removes a pending request, only if it has the given future.
+	 * 
+	 * @param id the ID of the request
+	 * @param future the future of the request
+	 * @return {@code true} if the request was removed
+	 */
+	boolean remove(final String id, final SettableFuture<IQ> future) {
+		final long value = generator.parse(checkNotNull(id));
+		final Request request = value >= 0 ? generated.get(value) : foreign.get(id);
+		if (request == null || request.future != future || !request.remove())
+			return false;
+
+		request.cancel();
+		return true;
+	}
+
+	/**
+	 * Fails every pending request, such as when the connection is lost.
+	 * 
+	 * @param cause the cause of the failure
+	 */
+	void failAll(final Throwable cause) {
+		checkNotNull(cause);
+
+		final List<Request> pending = Lists.newArrayList(foreign.values());
+		generated.addValuesTo(pending);
+
+		for (final Request request : pending) {
+			// Requests completed meanwhile are left alone
+			if (request.remove()) {
+				request.cancel();
+				request.future.setException(cause);
+			}
+		}
+	}
+
+	private final class Request implements TimerTask {
+
+		private final String id;
+		/** The counter value of the ID, or -1 if it's not from the generator. */
+		private final long value;
+		private final SettableFuture<IQ> future;
+		@Nullable
+		private volatile Timeout timeout;
+
+		private Request(final String id, final long value, final SettableFuture<IQ> future) {
+			this.id = id;
+			this.value = value;
+			this.future = future;
+		}
+
+		/**
+		 * Removes this request from the table, if still pending.
+		 * 
+		 * @return {@code true} if it was removed
+		 */
+		private boolean remove() {
+			return value >= 0 ? generated.remove(value, this) : foreign.remove(id, this);
+		}
+
+		@Override
+		public void run(final Timeout timeout) throws Exception {
+			if (remove()) {
+				future.setException(new TimeoutException("No response to IQ " + id));
+			}
+		}
+
+		private void cancel() {
+			final Timeout timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+
+	}
+
+	/**
+	 * Requests keyed by non-negative {@code long} values.
+	 * 
+	 * Keys are spread over stripes by their lowest bits, each an open
+	 * addressing table with its own lock. Counter values are consecutive, so
+	 * they fill each stripe evenly and need no further hashing.
+	 */
+	private static final class RequestMap {
+
+		private static final int STRIPE_BITS = 4;
+		private static final int STRIPE_MASK = (1 << STRIPE_BITS) - 1;
+
+		private final Stripe[] stripes;
+
+		private RequestMap() {
+			stripes = new Stripe[1 << STRIPE_BITS];
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new Stripe();
+			}
+		}
+
+		private Stripe stripe(final long key) {
+			return stripes[(int) key & STRIPE_MASK];
+		}
+
+		@Nullable
+		private Request get(final long key) {
+			return stripe(key).get(key >>> STRIPE_BITS);
+		}
+
+		@Nullable
+		private Request putIfAbsent(final long key, final Request request) {
+			return stripe(key).putIfAbsent(key >>> STRIPE_BITS, request);
+		}
+
+		@Nullable
+		private Request remove(final long key) {
+			return stripe(key).remove(key >>> STRIPE_BITS, null);
+		}
+
+		private boolean remove(final long key, final Request request) {
+			return stripe(key).remove(key >>> STRIPE_BITS, request) != null;
+		}
+
+		private void addValuesTo(final List<Request> list) {
+			for (final Stripe stripe : stripes) {
+				stripe.addValuesTo(list);
+			}
+		}
+
+	}
+
+	/**
+	 * A linear probing table of {@code long} keys, with -1 marking free slots.
+	 */
+	private static final class Stripe {
+
+		private static final long FREE = -1;
+		private static final int INITIAL_CAPACITY = 16;
+
+		private long[] keys;
+		private Request[] values;
+		private int size;
+
+		private Stripe() {
+			keys = newKeys(INITIAL_CAPACITY);
+			values = new Request[INITIAL_CAPACITY];
+		}
+
+		private static long[] newKeys(final int capacity) {
+			final long[] keys = new long[capacity];
+			Arrays.fill(keys, FREE);
+			return keys;
+		}
+
+		/**
+		 * Returns the slot of a key, or the free slot where it would be added.
+		 */
+		private int indexOf(final long key) {
+			final int mask = keys.length - 1;
+			int i = (int) key & mask;
+			while (keys[i] != FREE && keys[i] != key) {
+				i = i + 1 & mask;
+			}
+			return i;
+		}
+
+		@Nullable
+		private synchronized Request get(final long key) {
+			return values[indexOf(key)];
+		}
+
+		@Nullable
+		private synchronized Request putIfAbsent(final long key, final Request request) {
+			final int i = indexOf(key);
+			if (keys[i] != FREE)
+				return values[i];
+
+			keys[i] = key;
+			values[i] = request;
+			// Keep at most half of the slots in use, so probes stay short
+			if (++size > keys.length >> 1) {
+				resize(keys.length << 1);
+			}
+			return null;
+		}
+
+		/**
+		 * Removes the request of a key.
+		 * 
+		 * @param key the key
+		 * @param request the request to remove, or {@code null} to remove any
+		 * @return the removed request, or {@code null} if none was
+		 */
+		@Nullable
+		private synchronized Request remove(final long key, @Nullable final Request request) {
+			int i = indexOf(key);
+			final Request removed = values[i];
+			if (removed == null || request != null && removed != request)
+				return null;
+
+			// Shift back the keys after it which would no longer be found
+			final int mask = keys.length - 1;
+			for (int j = i + 1 & mask; keys[j] != FREE; j = j + 1 & mask) {
+				final int home = (int) keys[j] & mask;
+				if ((j - home & mask) >= (j - i & mask)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = FREE;
+			values[i] = null;
+			size--;
+			return removed;
+		}
+
+		private synchronized void addValuesTo(final List<Request> list) {
+			for (final Request request : values) {
+				if (request != null) {
+					list.add(request);
+				}
+			}
+		}
+
+		private void resize(final int capacity) {
+			final long[] oldKeys = keys;
+			final Request[] oldValues = values;
+			keys = newKeys(capacity);
+			values = new Request[capacity];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != FREE) {
+					final int j = indexOf(oldKeys[i]);
+					keys[j] = oldKeys[i];
+					values[j] = oldValues[i];
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.component;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+
+/**
+ * Handles IQ requests for a given payload.
+ * 
+ * @see AbstractXMPPComponent#registerIQHandler(String, String, IQ.Type, IQHandler)
+ */
+public interface IQHandler {
+
+	/**
+	 * Called when an IQ request with the registered payload is received.
+	 * 
+	 * @param iq the IQ request
+	 * @return a Future with the response to send
+	 */
+	ListenableFuture<IQ> handleIQ(IQ iq);
+
+}
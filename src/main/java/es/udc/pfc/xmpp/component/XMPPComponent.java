@@ -16,7 +16,10 @@
 
 package es.udc.pfc.xmpp.component;
 
+import java.util.List;
+
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.Timer;
 
 import es.udc.pfc.xmpp.stanza.IQ;
 import es.udc.pfc.xmpp.stanza.JID;
@@ -31,13 +34,16 @@ public interface XMPPComponent {
 	/**
 	 * Called by the stream handler to initialize the component.
 	 * 
-	 * Do not call this function directly.
+	 * This is called before any of the channels is connected, so the
+	 * component is initialized before it receives any stanza. Do not call
+	 * this function directly.
 	 * 
-	 * @param channel the Channel this component is bound to
+	 * @param channels the Channels this component is bound to, one per connection
+	 * @param timer the Timer this component can schedule timeouts in
 	 * @param serverID the server's XMPP address
 	 * @param componentID the component's XMPP address
 	 */
-	void init(Channel channel, JID serverID, JID componentID);
+	void init(List<Channel> channels, Timer timer, JID serverID, JID componentID);
 	
 	/**
 	 * Returns the server's XMPP address.
@@ -72,6 +78,9 @@ public interface XMPPComponent {
 	
 	/**
 	 * Called when this component connects to the server.
+	 * 
+	 * This, like the other connection callbacks, is called for each
+	 * connection of the component.
 	 */
 	void connected();
 	
@@ -89,6 +98,19 @@ public interface XMPPComponent {
 	 */
 	void disconnected();
 	
+	/**
+	 * Called when the outbound buffer of a connection fills up or drains.
+	 * 
+	 * While the channel is not writable, sent stanzas are still queued, so
+	 * components which send many stanzas should wait until it's writable
+	 * again. Each connection reports its own changes, so other connections
+	 * may still not be writable when one becomes writable.
+	 * 
+	 * @param channel the connection which changed
+	 * @param writable {@code true} if stanzas can be sent through the connection without queueing too much data
+	 */
+	void writabilityChanged(Channel channel, boolean writable);
+	
 	/**
 	 * Called when a message is received.
 	 * 
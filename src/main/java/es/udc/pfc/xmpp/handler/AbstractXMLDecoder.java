@@ -0,0 +1,407 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import com.fasterxml.aalto.AsyncXMLInputFactory;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+import com.google.common.collect.Lists;
+
+/**
+ * Base class for decoders driven by an asynchronous XML reader.
+ * 
+ * The asynchronous parser keeps its own state between reads, so incoming
+ * buffers are not accumulated: heap buffers are fed to the parser directly
+ * from their backing array, and only direct or composite buffers are copied.
+ * 
+ * Elements below the <i>skip</i> level are stanzas, which are checked against
+ * the {@link StanzaLimits} while they are parsed. Once a limit is exceeded or
+ * the input is not well-formed, a {@link StreamErrorException} is raised and
+ * any further input is discarded.
+ * 
+ * Decoders can also retain the bytes of each stanza, which are then
+ * available through {@link #getStanzaBytes()} when its end is handled, or
+ * {@link #setStreaming(boolean) stream} the contents of large elements
+ * without them counting towards the stanza limits.
+ * 
+ * In batching mode, all messages decoded from a single read are sent upstream
+ * in one event, which saves an event and an executor task per message.
+ */
+public abstract class AbstractXMLDecoder extends SimpleChannelUpstreamHandler {
+
+	private static final AsyncXMLInputFactory factory;
+
+	static {
+		factory = new InputFactoryImpl();
+		factory.setProperty(AsyncXMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(AsyncXMLInputFactory.P_INTERN_NAMES, Boolean.TRUE);
+		factory.setProperty(AsyncXMLInputFactory.P_INTERN_NS_URIS, Boolean.TRUE);
+	}
+
+	/**
+	 * The reader for this stream.
+	 */
+	protected final AsyncXMLStreamReader reader;
+
+	/**
+	 * The number of stream-level elements enclosing every stanza.
+	 */
+	protected final int skip;
+
+	private final StanzaLimits limits;
+	private byte[] chunk;
+	private byte[] input;
+	private int feedOffset;
+	private int readStart;
+	private int fed;
+	private int boundary;
+	private int depth;
+	private int textLength;
+	private boolean failed;
+
+	private boolean streaming;
+	private int streamStart;
+	private int streamed;
+
+	private boolean batching;
+	@Nullable
+	private List<Object> batch;
+
+	private boolean retaining;
+	private ChannelBuffer pending;
+	@Nullable
+	private byte[] stanzaBytes;
+
+	protected AbstractXMLDecoder(int skip, StanzaLimits limits) {
+		this.skip = skip;
+		this.limits = checkNotNull(limits);
+
+		reader = factory.createAsyncXMLStreamReader();
+		chunk = new byte[0];
+		pending = ChannelBuffers.EMPTY_BUFFER;
+	}
+
+	/**
+	 * Sets whether the messages decoded from each read should be sent upstream together.
+	 * 
+	 * When more than one message is decoded from a single read, they're sent
+	 * as a {@link MessageBatch}, so the next handler must accept them.
+	 * 
+	 * @param batching {@code true} to send messages in batches
+	 */
+	public final void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+
+	/**
+	 * Sets whether the bytes of each stanza should be retained.
+	 * 
+	 * Bytes which may belong to an unfinished stanza are kept between reads,
+	 * which never exceeds the stanza size limit plus the size of one read.
+	 * This must be set before any input is received.
+	 * 
+	 * @param retaining {@code true} to retain stanza bytes
+	 */
+	protected final void setRetaining(boolean retaining) {
+		this.retaining = retaining;
+	}
+
+	/**
+	 * Sets whether the contents of the current element are being streamed.
+	 * 
+	 * Streamed contents are not buffered by the decoder, so they don't count
+	 * towards the stanza size and text length limits. This must be enabled
+	 * while handling the START_ELEMENT of the streamed element, and disabled
+	 * while handling its END_ELEMENT. It can't be used while retaining
+	 * stanza bytes.
+	 * 
+	 * @param streaming {@code true} if the current element is being streamed
+	 */
+	protected final void setStreaming(boolean streaming) {
+		checkState(!retaining, "Retained stanzas can't be streamed");
+
+		if (streaming) {
+			streamStart = getPosition();
+		} else {
+			streamed += getPosition() - streamStart;
+		}
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Returns the bytes of the stanza being closed.
+	 * 
+	 * This is only available while handling the END_ELEMENT of a stanza,
+	 * and only if the decoder is retaining stanza bytes.
+	 * 
+	 * @return a copy of the bytes of the stanza, starting at its start tag
+	 */
+	protected final byte[] getStanzaBytes() {
+		checkState(stanzaBytes != null, "No stanza bytes available");
+		return stanzaBytes;
+	}
+
+	/**
+	 * Handles the event the reader is currently positioned at.
+	 * 
+	 * @param ctx the context of this handler
+	 * @param e the message event which provided the input
+	 * @param event the type of the current event
+	 * @throws Exception if the event can't be handled
+	 */
+	protected abstract void handleEvent(ChannelHandlerContext ctx, MessageEvent e, int event) throws Exception;
+
+	/**
+	 * Sends a decoded message upstream, or adds it to the current batch.
+	 * 
+	 * @param ctx the context of this handler
+	 * @param e the message event which provided the input
+	 * @param message the decoded message
+	 */
+	protected final void fireMessage(ChannelHandlerContext ctx, MessageEvent e, Object message) {
+		if (!batching) {
+			Channels.fireMessageReceived(ctx, message, e.getRemoteAddress());
+			return;
+		}
+
+		if (batch == null) {
+			batch = Lists.newArrayList();
+		}
+		batch.add(message);
+	}
+
+	/**
+	 * Returns the depth of the current event.
+	 * 
+	 * For START_ELEMENT and END_ELEMENT events this is the number of elements
+	 * enclosing the current one, so stream-level elements are below {@link #skip}
+	 * and stanzas are exactly at {@code skip}.
+	 * 
+	 * @return the depth of the current event
+	 */
+	protected final int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the position in the stream after the current event.
+	 * 
+	 * @return the number of bytes of the stream up to the end of the current event
+	 */
+	protected final int getPosition() {
+		// The reader counts positions from the start of the fed array
+		return reader.getLocation().getCharacterOffset() - feedOffset;
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (!(e.getMessage() instanceof ChannelBuffer)) {
+			ctx.sendUpstream(e);
+			return;
+		}
+
+		final ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+		final int length = buffer.readableBytes();
+		if (failed || length == 0)
+			return;
+
+		try {
+			feed(buffer, length);
+			buffer.skipBytes(length);
+			readStart = fed;
+			fed += length;
+
+			// The parser references the fed array until all of its input is consumed
+			int event;
+			while (reader.hasNext() && (event = reader.next()) != AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+				processEvent(ctx, e, event);
+			}
+
+			if (retaining) {
+				keepPending(length);
+			}
+
+			if (bufferedBytes(fed) > limits.getMaxStanzaSize())
+				throw new StreamErrorException(StreamErrorException.POLICY_VIOLATION, "Stanza size limit exceeded");
+		} catch (final XMLStreamException ex) {
+			failed = true;
+			throw new StreamErrorException(StreamErrorException.NOT_WELL_FORMED, ex.getMessage(), ex);
+		} catch (final StreamErrorException ex) {
+			failed = true;
+			throw ex;
+		} finally {
+			// Messages decoded before an error are still delivered
+			if (batch != null) {
+				fireBatch(ctx, e);
+			}
+		}
+	}
+
+	private void fireBatch(final ChannelHandlerContext ctx, final MessageEvent e) {
+		final List<Object> messages = batch;
+		batch = null;
+
+		if (messages.size() == 1) {
+			Channels.fireMessageReceived(ctx, messages.get(0), e.getRemoteAddress());
+		} else {
+			Channels.fireMessageReceived(ctx, new MessageBatch(messages), e.getRemoteAddress());
+		}
+	}
+
+	private void processEvent(final ChannelHandlerContext ctx, final MessageEvent e, final int event) throws Exception {
+		switch (event) {
+		case XMLStreamConstants.START_ELEMENT:
+			if (depth >= skip) {
+				if (depth - skip >= limits.getMaxDepth())
+					throw new StreamErrorException(StreamErrorException.POLICY_VIOLATION, "Stanza depth limit exceeded");
+				if (reader.getAttributeCount() + reader.getNamespaceCount() > limits.getMaxAttributes())
+					throw new StreamErrorException(StreamErrorException.POLICY_VIOLATION, "Attribute limit exceeded");
+			}
+			textLength = 0;
+			handleEvent(ctx, e, event);
+			depth++;
+			break;
+		case XMLStreamConstants.END_ELEMENT:
+			textLength = 0;
+			depth--;
+			if (depth == skip) {
+				// Stanzas which arrive in a single read are only measured here
+				final int position = getPosition();
+				if (bufferedBytes(position) > limits.getMaxStanzaSize())
+					throw new StreamErrorException(StreamErrorException.POLICY_VIOLATION, "Stanza size limit exceeded");
+
+				if (retaining) {
+					stanzaBytes = copyStanza(boundary, position);
+				}
+				try {
+					handleEvent(ctx, e, event);
+				} finally {
+					stanzaBytes = null;
+				}
+				boundary = position;
+				streamed = 0;
+				return;
+			}
+			handleEvent(ctx, e, event);
+			break;
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+			if (depth > skip && !streaming) {
+				textLength += reader.getTextLength();
+				if (textLength > limits.getMaxTextLength())
+					throw new StreamErrorException(StreamErrorException.POLICY_VIOLATION, "Text length limit exceeded");
+			}
+			handleEvent(ctx, e, event);
+			break;
+		default:
+			handleEvent(ctx, e, event);
+		}
+
+		if (depth <= skip && event != XMLStreamConstants.START_DOCUMENT) {
+			boundary = getPosition();
+			streamed = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of the current stanza, excluding streamed contents.
+	 */
+	private int bufferedBytes(final int position) {
+		final int size = position - boundary - streamed;
+		return streaming ? size - (position - streamStart) : size;
+	}
+
+	private void feed(final ChannelBuffer buffer, final int length) throws XMLStreamException {
+		if (buffer.hasArray()) {
+			input = buffer.array();
+			feedOffset = buffer.arrayOffset() + buffer.readerIndex();
+		} else {
+			if (chunk.length < length) {
+				chunk = new byte[length];
+			}
+			buffer.getBytes(buffer.readerIndex(), chunk, 0, length);
+			input = chunk;
+			feedOffset = 0;
+		}
+
+		reader.getInputFeeder().feedInput(input, feedOffset, length);
+	}
+
+	// Stream positions wrap around like the reader's, so they are only compared through differences
+
+	private void keepPending(final int length) {
+		final int kept = fed - boundary;
+		if (kept <= 0) {
+			// Release the buffer between stanzas, so a large stanza doesn't keep it allocated
+			pending = ChannelBuffers.EMPTY_BUFFER;
+			return;
+		}
+
+		if (pending == ChannelBuffers.EMPTY_BUFFER) {
+			pending = ChannelBuffers.dynamicBuffer(kept);
+		}
+
+		if (kept <= length) {
+			pending.clear();
+			pending.writeBytes(input, feedOffset + length - kept, kept);
+		} else {
+			pending.writeBytes(input, feedOffset, length);
+		}
+	}
+
+	private byte[] copyStanza(int start, final int end) {
+		// Skip whitespace between the previous boundary and the start tag
+		while (start != end && byteAt(start) != '<') {
+			start++;
+		}
+
+		final byte[] result = new byte[end - start];
+		int copied = 0;
+		if (start - readStart < 0) {
+			copied = readStart - start;
+			pending.getBytes(pending.writerIndex() - copied, result, 0, copied);
+			start = readStart;
+		}
+		System.arraycopy(input, feedOffset + start - readStart, result, copied, end - start);
+		return result;
+	}
+
+	private byte byteAt(final int position) {
+		if (position - readStart < 0)
+			return pending.getByte(pending.writerIndex() - (readStart - position));
+
+		return input[feedOffset + position - readStart];
+	}
+
+}
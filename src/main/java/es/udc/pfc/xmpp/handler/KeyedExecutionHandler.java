@@ -0,0 +1,195 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Maps;
+
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Stanza;
+
+/**
+ * Hands upstream events to an Executor, keeping them in order per key.
+ * 
+ * Stanzas with the same key, such as the same sender, are handled one at
+ * a time and in order, while stanzas with different keys are handled in
+ * parallel. Any other events, and stanzas with no key, are kept in order
+ * per channel instead. Stanzas are not ordered relative to other events,
+ * so a stanza may still be handled after the channel is closed.
+ * 
+ * {@link MessageBatch Batches} are split, so each stanza is ordered by its
+ * own key.
+ */
+public class KeyedExecutionHandler extends ExecutionHandler {
+
+	/**
+	 * Orders stanzas by the bare JID of their sender.
+	 */
+	public static final Function<Stanza, Object> SENDER_BARE_JID = new Function<Stanza, Object>() {
+		@Override
+		@Nullable
+		public Object apply(final Stanza stanza) {
+			final JID from = stanza.getFrom();
+			return from != null ? from.getBareJID() : null;
+		}
+	};
+
+	/** The number of tasks of a key which are run before letting other keys run. */
+	private static final int MAX_TASKS_PER_RUN = 16;
+
+	private final Function<? super Stanza, ?> keyFunction;
+	private final ConcurrentMap<Object, KeyQueue> queues;
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param executor the executor which runs the events
+	 * @param keyFunction the function which returns the key of a stanza, or {@code null} if none
+	 */
+	public KeyedExecutionHandler(final Executor executor, final Function<? super Stanza, ?> keyFunction) {
+		super(executor);
+
+		this.keyFunction = checkNotNull(keyFunction);
+		queues = Maps.newConcurrentMap();
+	}
+
+	@Override
+	public void handleUpstream(final ChannelHandlerContext ctx, final ChannelEvent e) throws Exception {
+		if (!(e instanceof MessageEvent)) {
+			execute(e.getChannel(), ctx, e);
+			return;
+		}
+
+		final MessageEvent event = (MessageEvent) e;
+		if (event.getMessage() instanceof MessageBatch) {
+			final MessageBatch batch = (MessageBatch) event.getMessage();
+			for (int i = 0; i < batch.size(); i++) {
+				final Object message = batch.get(i);
+				execute(keyOf(event, message), ctx, new UpstreamMessageEvent(event.getChannel(), message, event.getRemoteAddress()));
+			}
+		} else {
+			execute(keyOf(event, event.getMessage()), ctx, e);
+		}
+	}
+
+	private Object keyOf(final MessageEvent e, final Object message) {
+		final Object key = message instanceof Stanza ? keyFunction.apply((Stanza) message) : null;
+		return key != null ? key : e.getChannel();
+	}
+
+	private void execute(final Object key, final ChannelHandlerContext ctx, final ChannelEvent e) {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ctx.sendUpstream(e);
+			}
+		};
+
+		// A queue which ran out of tasks is removed, and a new one must be added
+		while (true) {
+			KeyQueue queue = queues.get(key);
+			if (queue == null) {
+				final KeyQueue newQueue = new KeyQueue(key);
+				queue = queues.putIfAbsent(key, newQueue);
+				if (queue == null) {
+					queue = newQueue;
+				}
+			}
+
+			if (queue.offer(task))
+				return;
+		}
+	}
+
+	/**
+	 * The pending tasks of a key, which are run one at a time.
+	 */
+	private final class KeyQueue implements Runnable {
+
+		private final Object key;
+		private final Queue<Runnable> tasks;
+		private boolean running;
+		private boolean removed;
+
+		private KeyQueue(final Object key) {
+			this.key = key;
+			tasks = new ArrayDeque<Runnable>();
+		}
+
+		/**
+		 * Adds a task, and starts running the queue if needed.
+		 * 
+		 * @param task the task to add
+		 * @return {@code false} if this queue was already removed
+		 */
+		private synchronized boolean offer(final Runnable task) {
+			if (removed)
+				return false;
+
+			tasks.add(task);
+			if (!running) {
+				running = true;
+				getExecutor().execute(this);
+			}
+			return true;
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+				final Runnable task;
+				synchronized (this) {
+					task = tasks.poll();
+					if (task == null) {
+						running = false;
+						removed = true;
+						queues.remove(key, this);
+						return;
+					}
+				}
+
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					// The rest of the tasks of this key must still run
+					getExecutor().execute(this);
+					throw e;
+				}
+			}
+
+			// Let other keys run before going on
+			getExecutor().execute(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.collect.Iterators;
+
+/**
+ * Messages decoded from a single read, sent upstream as a single event.
+ * 
+ * Handlers which accept batches must handle the messages in order, as if
+ * they had been received one by one.
+ */
+public final class MessageBatch implements Iterable<Object> {
+
+	private final List<Object> messages;
+
+	/**
+	 * Creates a new batch.
+	 * 
+	 * The list is used as it is, so it must not be modified afterwards.
+	 * 
+	 * @param messages the messages in this batch
+	 */
+	public MessageBatch(final List<Object> messages) {
+		this.messages = checkNotNull(messages);
+	}
+
+	/**
+	 * Returns the number of messages in this batch.
+	 * 
+	 * @return the number of messages
+	 */
+	public int size() {
+		return messages.size();
+	}
+
+	/**
+	 * Returns a message from this batch.
+	 * 
+	 * @param index the position of the message
+	 * @return the message at the given position
+	 */
+	public Object get(final int index) {
+		return messages.get(index);
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return Iterators.unmodifiableIterator(messages.iterator());
+	}
+
+	@Override
+	public String toString() {
+		return "MessageBatch" + messages;
+	}
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A message written with an explicit priority, overriding its default one.
+ * 
+ * This must only be written to pipelines with a {@link PriorityWriteHandler}.
+ */
+public final class PrioritizedMessage {
+
+	private final Object message;
+	private final WritePriority priority;
+
+	/**
+	 * Creates a new prioritized message.
+	 * 
+	 * @param message the message to be written
+	 * @param priority the priority class of the message
+	 */
+	public PrioritizedMessage(final Object message, final WritePriority priority) {
+		this.message = checkNotNull(message);
+		this.priority = checkNotNull(priority);
+	}
+
+	/**
+	 * Returns the message to be written.
+	 * 
+	 * @return the wrapped message
+	 */
+	public Object getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the priority class of the message.
+	 * 
+	 * @return the priority
+	 */
+	public WritePriority getPriority() {
+		return priority;
+	}
+
+	@Override
+	public String toString() {
+		return priority + ":" + message;
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.pfc.xmpp.handler;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.EnumMap;
+import java.util.Queue;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Schedules outbound writes by priority while the channel is congested.
+ * 
+ * Writes go through right away while the channel is writable. Once it
+ * isn't, they are queued in one lane per {@link WritePriority}, and sent
+ * in weighted rounds as the channel drains, so a backlog of bulk messages
+ * only delays IQs and presences by a few writes. Writes in the same lane
+ * keep their order.
+ * 
+ * This handler must be placed right below the {@link XMPPStreamHandler},
+ * which serializes stanzas before they get here, so queued writes don't
+ * change if their stanzas are modified or released afterwards.
+ * {@link PrioritizedMessage}s are unwrapped here, using their priority
+ * instead of the default one.
+ */
+public class PriorityWriteHandler extends SimpleChannelHandler {
+
+	private final EnumMap<WritePriority, Queue<MessageEvent>> lanes;
+	private int queued;
+
+	public PriorityWriteHandler() {
+		lanes = new EnumMap<WritePriority, Queue<MessageEvent>>(WritePriority.class);
+		for (final WritePriority priority : WritePriority.values()) {
+			lanes.put(priority, Lists.<MessageEvent> newLinkedList());
+		}
+		queued = 0;
+	}
+
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		final MessageEvent event;
+		final WritePriority priority;
+		if (e.getMessage() instanceof PrioritizedMessage) {
+			final PrioritizedMessage prioritized = (PrioritizedMessage) e.getMessage();
+			event = new DownstreamMessageEvent(e.getChannel(), e.getFuture(), prioritized.getMessage(), e.getRemoteAddress());
+			priority = prioritized.getPriority();
+		} else {
+			event = e;
+			priority = WritePriority.of(e.getMessage());
+		}
+
+		synchronized (this) {
+			if (queued == 0 && ctx.getChannel().isWritable()) {
+				ctx.sendDownstream(event);
+				return;
+			}
+
+			lanes.get(priority).add(event);
+			queued++;
+			drain(ctx, false);
+		}
+	}
+
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		drain(ctx, false);
+
+		ctx.sendUpstream(e);
+	}
+
+	@Override
+	public void disconnectRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// Queued writes go before the end of the stream, even if the channel is congested
+		drain(ctx, true);
+
+		ctx.sendDownstream(e);
+	}
+
+	@Override
+	public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		drain(ctx, true);
+
+		ctx.sendDownstream(e);
+	}
+
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		synchronized (this) {
+			for (final Queue<MessageEvent> lane : lanes.values()) {
+				for (final MessageEvent event : lane) {
+					event.getFuture().setFailure(new ClosedChannelException());
+				}
+				lane.clear();
+			}
+			queued = 0;
+		}
+
+		ctx.sendUpstream(e);
+	}
+
+	/**
+	 * Sends queued writes in weighted rounds, while the channel is writable.
+	 * 
+	 * @param ctx the context of this handler
+	 * @param all {@code true} to send every queued write, even if the channel is not writable
+	 */
+	private synchronized void drain(final ChannelHandlerContext ctx, final boolean all) {
+		while (queued > 0 && (all || ctx.getChannel().isWritable())) {
+			for (final WritePriority priority : WritePriority.values()) {
+				final Queue<MessageEvent> lane = lanes.get(priority);
+				for (int i = 0; i < priority.getWeight() && !lane.isEmpty(); i++) {
+					queued--;
+					ctx.sendDownstream(lane.remove());
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Limits enforced on every stanza while it is being parsed.
+ * 
+ * Limits are checked as soon as the parser reports each part of a stanza,
+ * so a stanza exceeding them is rejected without buffering the rest of it.
+ */
+public final class StanzaLimits {
+
+	/**
+	 * Default limits: 1 MiB per stanza, 32 levels of nesting, 64 attributes
+	 * per element and 512 KiB of text per node.
+	 */
+	public static final StanzaLimits DEFAULT = new StanzaLimits(1 << 20, 32, 64, 1 << 19);
+
+	/**
+	 * No limits at all.
+	 */
+	public static final StanzaLimits UNLIMITED = new StanzaLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+	private final int maxStanzaSize;
+	private final int maxDepth;
+	private final int maxAttributes;
+	private final int maxTextLength;
+
+	/**
+	 * Creates a new set of limits.
+	 * 
+	 * @param maxStanzaSize the maximum size of a stanza, in bytes
+	 * @param maxDepth the maximum nesting depth, counting the stanza itself
+	 * @param maxAttributes the maximum number of attributes of an element, including namespace declarations
+	 * @param maxTextLength the maximum length of a text node, in characters
+	 */
+	public StanzaLimits(int maxStanzaSize, int maxDepth, int maxAttributes, int maxTextLength) {
+		checkArgument(maxStanzaSize > 0 && maxDepth > 0 && maxAttributes >= 0 && maxTextLength >= 0, "Invalid limits");
+
+		this.maxStanzaSize = maxStanzaSize;
+		this.maxDepth = maxDepth;
+		this.maxAttributes = maxAttributes;
+		this.maxTextLength = maxTextLength;
+	}
+
+	/**
+	 * Returns the maximum size of a stanza.
+	 * 
+	 * @return the maximum size, in bytes
+	 */
+	public int getMaxStanzaSize() {
+		return maxStanzaSize;
+	}
+
+	/**
+	 * Returns the maximum nesting depth, counting the stanza itself.
+	 * 
+	 * @return the maximum nesting depth
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Returns the maximum number of attributes of an element.
+	 * 
+	 * @return the maximum number of attributes, including namespace declarations
+	 */
+	public int getMaxAttributes() {
+		return maxAttributes;
+	}
+
+	/**
+	 * Returns the maximum length of a text node.
+	 * 
+	 * @return the maximum length, in characters
+	 */
+	public int getMaxTextLength() {
+		return maxTextLength;
+	}
+
+}
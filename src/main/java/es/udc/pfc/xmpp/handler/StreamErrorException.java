@@ -0,0 +1,57 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+/**
+ * Signals a condition which must end the XMPP stream with a stream error.
+ * 
+ * @see <a href="http://xmpp.org/rfcs/rfc6120.html#streams-error">RFC 6120 - Section 4.9</a>
+ */
+public class StreamErrorException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Sent when the peer violates a local policy, such as a stanza limit. */
+	public static final String POLICY_VIOLATION = "policy-violation";
+	/** Sent when the peer sends XML which is not well-formed. */
+	public static final String NOT_WELL_FORMED = "not-well-formed";
+
+	private final String condition;
+
+	public StreamErrorException(String condition, String message) {
+		this(condition, message, null);
+	}
+
+	public StreamErrorException(String condition, String message, @Nullable Throwable cause) {
+		super(message, cause);
+		this.condition = checkNotNull(condition);
+	}
+
+	/**
+	 * Returns the defined condition for this error.
+	 * 
+	 * @return the name of the condition element
+	 */
+	public String getCondition() {
+		return condition;
+	}
+
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import es.udc.pfc.xmpp.xml.XMLElement;
+
+/**
+ * Receives the text of streamed elements while they are parsed.
+ * 
+ * Streamed elements are still part of their stanza, but their text is
+ * written to the consumer in chunks instead of being kept by the element.
+ * Consumers are called from the I/O thread, before the stanza is complete.
+ * 
+ * @see XMLStanzaDecoder#addStreamingConsumer(String, String, StreamingConsumer)
+ */
+public interface StreamingConsumer {
+
+	/**
+	 * Starts streaming the text of an element.
+	 * 
+	 * The element only has its attributes at this point, but the stanza it
+	 * belongs to is available through its parents. The writer is closed when
+	 * the element ends; if the stream fails before that, it's left open.
+	 * 
+	 * @param element the streamed element
+	 * @return the writer which will receive the text of the element
+	 * @throws IOException if the text can't be received
+	 */
+	Writer open(XMLElement element) throws IOException;
+
+}
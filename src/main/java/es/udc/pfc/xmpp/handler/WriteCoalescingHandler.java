@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.queue.BufferedWriteHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Coalesces written buffers into fewer, larger writes.
+ * 
+ * Written buffers are queued until they add up to the byte threshold, or
+ * until the first of them has waited for the maximum delay, and are then
+ * written downstream as a single composite buffer. {@link #flush()} writes
+ * any queued buffers right away, for writes which shouldn't wait.
+ * 
+ * This handler must be placed first in the pipeline, so it only sees
+ * encoded buffers. The {@link XEP0114Decoder} flushes it after writing
+ * the stream header, the handshake and the end of the stream.
+ */
+public class WriteCoalescingHandler extends BufferedWriteHandler {
+
+	private final Timer timer;
+	private final long maxDelay;
+	private final TimeUnit unit;
+	private final int maxBytes;
+
+	private final AtomicInteger pendingBytes;
+	private final AtomicBoolean scheduled;
+	private final TimerTask flushTask;
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param timer the timer used to flush delayed writes
+	 * @param maxDelay the maximum time a write can be queued, or 0 to flush on every write
+	 * @param unit the unit of the maximum delay
+	 * @param maxBytes the number of queued bytes which triggers a flush
+	 */
+	public WriteCoalescingHandler(Timer timer, long maxDelay, TimeUnit unit, int maxBytes) {
+		super(true);
+		checkArgument(maxDelay >= 0, "Negative delay");
+		checkArgument(maxBytes > 0, "Non-positive byte threshold");
+
+		this.timer = checkNotNull(timer);
+		this.maxDelay = maxDelay;
+		this.unit = checkNotNull(unit);
+		this.maxBytes = maxBytes;
+
+		pendingBytes = new AtomicInteger();
+		scheduled = new AtomicBoolean();
+		flushTask = new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				flush();
+			}
+		};
+	}
+
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		super.writeRequested(ctx, e);
+
+		final int size = e.getMessage() instanceof ChannelBuffer ? ((ChannelBuffer) e.getMessage()).readableBytes() : 0;
+		if (maxDelay == 0 || pendingBytes.addAndGet(size) >= maxBytes) {
+			flush();
+		} else if (scheduled.compareAndSet(false, true)) {
+			timer.newTimeout(flushTask, maxDelay, unit);
+		}
+	}
+
+	@Override
+	public void flush(boolean consolidateOnFlush) {
+		// Writes queued meanwhile are flushed too, at worst scheduling an empty flush
+		pendingBytes.set(0);
+		scheduled.set(false);
+
+		super.flush(consolidateOnFlush);
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.pfc.xmpp.handler;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.Presence;
+
+/**
+ * Priority classes for outbound writes.
+ * 
+ * While the channel is congested, each class gets a share of the writes
+ * proportional to its weight, so bulk traffic can't hold back the rest.
+ * 
+ * @see PriorityWriteHandler
+ */
+public enum WritePriority {
+
+	/** IQ requests and responses, which someone is waiting for. */
+	IQ(8),
+
+	/** Presence stanzas. */
+	PRESENCE(4),
+
+	/** Messages, and anything else by default. */
+	MESSAGE(2),
+
+	/** Bulk traffic, such as broadcasts. */
+	BULK(1);
+
+	private final int weight;
+
+	private WritePriority(final int weight) {
+		this.weight = weight;
+	}
+
+	/**
+	 * Returns the number of writes of this class sent in each round.
+	 * 
+	 * @return the weight of this class
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the default priority of a written message.
+	 * 
+	 * @param message the message to be written
+	 * @return the priority class for the message
+	 */
+	public static WritePriority of(final Object message) {
+		if (message instanceof IQ)
+			return IQ;
+		if (message instanceof Presence)
+			return PRESENCE;
+		return MESSAGE;
+	}
+
+}
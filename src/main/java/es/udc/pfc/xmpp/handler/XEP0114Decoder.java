@@ -18,6 +18,9 @@ package es.udc.pfc.xmpp.handler;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.List;
+
+import javax.annotation.Nullable;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.EndElement;
@@ -25,18 +28,22 @@ import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.util.CharsetUtil;
 
+import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 
 import es.udc.pfc.xmpp.stanza.Stanza;
 import es.udc.pfc.xmpp.stanza.XMPPNamespaces;
 import es.udc.pfc.xmpp.xml.XMLElement;
+import es.udc.pfc.xmpp.xml.XMLFragment;
 
 /**
  * XEP-0114 Stream Decoder.
@@ -45,12 +52,19 @@ public class XEP0114Decoder extends SimpleChannelHandler {
 
 	private static final QName STREAM_NAME = new QName(XMPPNamespaces.STREAM, "stream", "stream");
 
+	private static final XMLFragment HANDSHAKE_START = XMLFragment.of("<handshake>");
+	private static final XMLFragment HANDSHAKE_END = XMLFragment.of("</handshake>");
+	private static final XMLFragment STREAM_ERROR_START = XMLFragment.of("<stream:error><");
+	private static final XMLFragment STREAM_ERROR_END = XMLFragment.of(" xmlns='" + XMPPNamespaces.STREAMS + "'/></stream:error></stream:stream>");
+	private static final XMLFragment STREAM_END = XMLFragment.of("</stream:stream>");
+
 	private static enum Status {
 		CONNECT, AUTHENTICATE, READY, DISCONNECTED;
 	}
 
 	private final String serverName;
 	private final String secret;
+	private final XMLFragment streamHeader;
 	private Status status;
 	private String streamID;
 
@@ -59,21 +73,63 @@ public class XEP0114Decoder extends SimpleChannelHandler {
 		
 		this.serverName = checkNotNull(serverName);
 		this.secret = checkNotNull(secret);
+		streamHeader = XMLFragment.of("<stream:stream xmlns='" + XMPPNamespaces.ACCEPT + "' xmlns:stream='" + XMPPNamespaces.STREAM + "' to='" + serverName + "'>");
 		
 		status = Status.CONNECT;
 	}
 
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-		Channels.write(ctx.getChannel(), ChannelBuffers.copiedBuffer("<stream:stream xmlns='jabber:component:accept' xmlns:stream='http://etherx.jabber.org/streams' to='" + serverName + "'>", CharsetUtil.UTF_8));
+		Channels.write(ctx.getChannel(), streamHeader.buffer());
+		flush(ctx);
 
 		//ctx.sendUpstream(e);
 	}
 
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-		if (e.getMessage() instanceof XMLEvent) {
-			final XMLEvent event = (XMLEvent) e.getMessage();
+		if (e.getMessage() instanceof MessageBatch) {
+			final MessageBatch batch = (MessageBatch) e.getMessage();
+			final List<Object> stanzas = Lists.newArrayListWithCapacity(batch.size());
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					final Object message = decode(ctx, batch.get(i));
+					if (message != null) {
+						stanzas.add(message);
+					}
+				}
+			} finally {
+				// Stanzas decoded before an error are still delivered
+				if (stanzas.size() == 1) {
+					Channels.fireMessageReceived(ctx, stanzas.get(0));
+				} else if (!stanzas.isEmpty()) {
+					Channels.fireMessageReceived(ctx, new MessageBatch(stanzas));
+				}
+			}
+		}
+		else if (e.getMessage() instanceof XMLEvent || e.getMessage() instanceof XMLElement) {
+			final Object message = decode(ctx, e.getMessage());
+			if (message != null) {
+				Channels.fireMessageReceived(ctx, message);
+			}
+		}
+		else {
+			ctx.sendUpstream(e);
+		}
+	}
+
+	/**
+	 * Handles a message received from the XML decoder.
+	 * 
+	 * @param ctx the context of this handler
+	 * @param message the received message
+	 * @return the message to send upstream, or {@code null} if none
+	 * @throws Exception if the message is not valid for the current status
+	 */
+	@Nullable
+	private Object decode(ChannelHandlerContext ctx, Object message) throws Exception {
+		if (message instanceof XMLEvent) {
+			final XMLEvent event = (XMLEvent) message;
 
 			switch (status) {
 			case CONNECT:
@@ -85,9 +141,11 @@ public class XEP0114Decoder extends SimpleChannelHandler {
 							throw new Exception("server name mismatch");
 						}
 						streamID = element.getAttributeByName(new QName("id")).getValue();
+						ctx.getPipeline().get(XMPPStreamHandler.class).setStreamNamespace(XMPPNamespaces.ACCEPT);
 
 						status = Status.AUTHENTICATE;
-						Channels.write(ctx.getChannel(), ChannelBuffers.copiedBuffer("<handshake>" + Hashing.sha1().hashString(streamID + secret, CharsetUtil.UTF_8).toString() + "</handshake>", CharsetUtil.UTF_8));
+						Channels.write(ctx.getChannel(), ChannelBuffers.wrappedBuffer(HANDSHAKE_START.buffer(), ChannelBuffers.copiedBuffer(Hashing.sha1().hashString(streamID + secret, CharsetUtil.UTF_8).toString(), CharsetUtil.UTF_8), HANDSHAKE_END.buffer()));
+						flush(ctx);
 					}
 				} else {
 					throw new Exception("Expected stream:stream element");
@@ -100,7 +158,7 @@ public class XEP0114Decoder extends SimpleChannelHandler {
 
 					if (STREAM_NAME.equals(element.getName())) {
 						Channels.disconnect(ctx.getChannel());
-						return;
+						return null;
 					}
 				}
 				break;
@@ -108,8 +166,8 @@ public class XEP0114Decoder extends SimpleChannelHandler {
 				throw new Exception("received DISCONNECTED");
 			}
 		}
-		else if (e.getMessage() instanceof XMLElement) {
-			final XMLElement element = (XMLElement) e.getMessage();
+		else if (message instanceof XMLElement) {
+			final XMLElement element = (XMLElement) message;
 			
 			switch (status) {
 			case AUTHENTICATE:
@@ -126,20 +184,51 @@ public class XEP0114Decoder extends SimpleChannelHandler {
 				if (stanza == null)
 					throw new Exception("Unknown stanza");
 
-				Channels.fireMessageReceived(ctx, stanza);
-				break;
+				return stanza;
 			default:
 				throw new Exception("unexpected handleElement");
 			}
 		}
 		else {
+			// Anything else is passed along
+			return message;
+		}
+
+		return null;
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+		if (!(e.getCause() instanceof StreamErrorException)) {
 			ctx.sendUpstream(e);
+			return;
 		}
+
+		final StreamErrorException error = (StreamErrorException) e.getCause();
+		status = Status.DISCONNECTED;
+		Channels.write(ctx.getChannel(), ChannelBuffers.wrappedBuffer(STREAM_ERROR_START.buffer(), ChannelBuffers.copiedBuffer(error.getCondition(), CharsetUtil.UTF_8), STREAM_ERROR_END.buffer())).addListener(ChannelFutureListener.CLOSE);
+		flush(ctx);
 	}
 
 	@Override
 	public void disconnectRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-		Channels.write(ctx, e.getFuture(), ChannelBuffers.copiedBuffer("</stream:stream>", CharsetUtil.UTF_8));
+		Channels.write(ctx, e.getFuture(), STREAM_END.buffer());
+		flush(ctx);
+	}
+
+	/**
+	 * Writes anything held back by write coalescing.
+	 * 
+	 * Stream headers, handshakes and stream ends can't wait to be coalesced
+	 * with later stanzas, as the other side is waiting for them.
+	 * 
+	 * @param ctx the context of this handler
+	 */
+	private static void flush(ChannelHandlerContext ctx) {
+		final WriteCoalescingHandler coalescer = ctx.getPipeline().get(WriteCoalescingHandler.class);
+		if (coalescer != null) {
+			coalescer.flush();
+		}
 	}
 
 }
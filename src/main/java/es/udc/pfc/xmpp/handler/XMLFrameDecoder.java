@@ -16,57 +16,31 @@
 
 package es.udc.pfc.xmpp.handler;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import javax.xml.stream.events.XMLEvent;
-
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.channel.MessageEvent;
 
-import com.fasterxml.aalto.AsyncXMLInputFactory;
-import com.fasterxml.aalto.AsyncXMLStreamReader;
 import com.fasterxml.aalto.evt.EventAllocatorImpl;
-import com.fasterxml.aalto.stax.InputFactoryImpl;
 
 /**
  * Decodes an XML stream into XML Events.
+ * 
+ * @see XMLStanzaDecoder
  */
-public class XMLFrameDecoder extends FrameDecoder {
-
-	private static final AsyncXMLInputFactory factory;
-	private static final EventAllocatorImpl allocator;
-
-	static {
-		factory = new InputFactoryImpl();
-		factory.setProperty(AsyncXMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
-		allocator = EventAllocatorImpl.getDefaultInstance();
-	}
+public class XMLFrameDecoder extends AbstractXMLDecoder {
 
-	private final AsyncXMLStreamReader reader;
+	private static final EventAllocatorImpl allocator = EventAllocatorImpl.getDefaultInstance();
 
 	public XMLFrameDecoder() {
-		super(true);
+		this(1, StanzaLimits.DEFAULT);
+	}
 
-		reader = factory.createAsyncXMLStreamReader();
+	public XMLFrameDecoder(int skip, StanzaLimits limits) {
+		super(skip, limits);
 	}
 
 	@Override
-	protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
-		final List<XMLEvent> result = new ArrayList<XMLEvent>();
-
-		byte[] chunk = new byte[buffer.readableBytes()];
-		buffer.readBytes(chunk);
-		
-		reader.getInputFeeder().feedInput(chunk, 0, chunk.length);
-
-		while (reader.hasNext() && reader.next() != AsyncXMLStreamReader.EVENT_INCOMPLETE) {
-			result.add(allocator.allocate(reader));
-		}
-
-		return result;
+	protected void handleEvent(ChannelHandlerContext ctx, MessageEvent e, int event) throws Exception {
+		fireMessage(ctx, e, allocator.allocate(reader));
 	}
 
 }
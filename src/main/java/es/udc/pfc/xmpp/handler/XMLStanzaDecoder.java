@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.handler;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Writer;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamConstants;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.fasterxml.aalto.evt.EventAllocatorImpl;
+import com.google.common.base.Strings;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
+
+import es.udc.pfc.xmpp.xml.CompactXMLElement;
+import es.udc.pfc.xmpp.xml.LazyXMLElement;
+import es.udc.pfc.xmpp.xml.XMLElement;
+import es.udc.pfc.xmpp.xml.XMLElementPool;
+import es.udc.pfc.xmpp.xml.XMLModel;
+import es.udc.pfc.xmpp.xml.XMLStreamBuilder;
+
+/**
+ * Decodes an XML stream into XML Elements.
+ * 
+ * Elements are built directly from the reader's cursor state. Only the
+ * stream-level start and end tags are sent upstream as XML Events. This is
+ * equivalent to an {@link XMLFrameDecoder} followed by an {@link XMLElementDecoder},
+ * without creating an XML Event for every node.
+ * 
+ * In lazy mode, only the start tag of each stanza is captured while parsing,
+ * and stanzas are sent upstream as {@link LazyXMLElement}s which are built
+ * from their bytes only when their contents are needed.
+ * 
+ * Compact and lazy stanzas can also keep their original bytes, so stanzas
+ * forwarded without modification are written exactly as they were received.
+ * 
+ * The text of large elements inside compact stanzas can be streamed to a
+ * {@link StreamingConsumer} while it's parsed, instead of being kept in the
+ * stanza.
+ */
+public class XMLStanzaDecoder extends AbstractXMLDecoder {
+
+	private static final EventAllocatorImpl allocator = EventAllocatorImpl.getDefaultInstance();
+
+	private final XMLModel model;
+	private XMLStreamBuilder builder;
+	private final Map<String, String> namespaces;
+	private final Table<String, String, StreamingConsumer> consumers;
+
+	private boolean lazy;
+	private boolean keepingRawBytes;
+	private XMLStreamBuilder headBuilder;
+	private byte[] context;
+	@Nullable
+	private XMLElement head;
+	@Nullable
+	private Writer writer;
+	private int streamDepth;
+
+	public XMLStanzaDecoder() {
+		this(1, StanzaLimits.DEFAULT);
+	}
+
+	public XMLStanzaDecoder(int skip, StanzaLimits limits) {
+		this(skip, limits, XMLModel.getDefault());
+	}
+
+	public XMLStanzaDecoder(int skip, StanzaLimits limits, XMLModel model) {
+		super(skip, limits);
+		this.model = model;
+		builder = XMLStreamBuilder.create(model);
+		namespaces = Maps.newLinkedHashMap();
+		consumers = HashBasedTable.create();
+		context = new byte[0];
+	}
+
+	/**
+	 * Sets whether stanzas should be built lazily.
+	 * 
+	 * This must be set before any input is received.
+	 * 
+	 * @param lazy {@code true} to send stanzas as {@link LazyXMLElement}s
+	 */
+	public final void setLazy(boolean lazy) {
+		checkState(!lazy || consumers.isEmpty(), "Lazy stanzas can't be streamed");
+		this.lazy = lazy;
+		if (lazy && headBuilder == null) {
+			headBuilder = XMLStreamBuilder.create(XMLModel.COMPACT);
+		}
+		setRetaining(lazy || keepingRawBytes);
+	}
+
+	/**
+	 * Sets whether compact stanzas should keep the bytes they were parsed from.
+	 * 
+	 * Lazy stanzas always keep their bytes. This must be set before any input
+	 * is received.
+	 * 
+	 * @param keepingRawBytes {@code true} to keep the original bytes of each stanza
+	 * @see CompactXMLElement#getRawBytes()
+	 */
+	public final void setKeepingRawBytes(boolean keepingRawBytes) {
+		checkState(!keepingRawBytes || consumers.isEmpty(), "Stanzas which keep their bytes can't be streamed");
+		this.keepingRawBytes = keepingRawBytes;
+		setRetaining(lazy || keepingRawBytes);
+	}
+
+	/**
+	 * Sets whether compact stanzas should be taken from the {@link XMLElementPool}.
+	 * 
+	 * Lazy stanzas are never pooled. This must be set before any input is received.
+	 * 
+	 * @param pooled {@code true} to build stanzas from pooled elements
+	 */
+	public final void setPooled(boolean pooled) {
+		checkState(!pooled || model == XMLModel.COMPACT, "Only compact stanzas can be pooled");
+		builder = pooled ? XMLStreamBuilder.createPooled() : XMLStreamBuilder.create(model);
+	}
+
+	/**
+	 * Streams the text of the elements with the given name and namespace.
+	 * 
+	 * Matching elements inside a stanza are delivered empty and
+	 * {@link CompactXMLElement#isStreamed() marked as streamed}, and all the
+	 * text inside them is written to the consumer as it's parsed. Streamed
+	 * text doesn't count towards the stanza size and text length limits.
+	 * 
+	 * Streaming is only available for compact stanzas which are not lazy and
+	 * don't keep their bytes. This must be set before any input is received.
+	 * 
+	 * @param name the name of the elements to stream
+	 * @param namespace the namespace of the elements to stream
+	 * @param consumer the consumer for their text
+	 */
+	public final void addStreamingConsumer(String name, String namespace, StreamingConsumer consumer) {
+		checkState(model == XMLModel.COMPACT && !lazy && !keepingRawBytes, "Only compact stanzas which don't keep their bytes can be streamed");
+		consumers.put(namespace, name, consumer);
+	}
+
+	@Override
+	protected void handleEvent(ChannelHandlerContext ctx, MessageEvent e, int event) throws Exception {
+		switch (event) {
+		case XMLStreamConstants.START_ELEMENT:
+			if (getDepth() < skip) {
+				addContext();
+				fireMessage(ctx, e, allocator.allocate(reader));
+			} else if (lazy) {
+				if (getDepth() == skip) {
+					headBuilder.startElement(reader);
+					head = headBuilder.endElement();
+				}
+			} else {
+				builder.startElement(reader);
+				if (writer == null && getDepth() > skip && !consumers.isEmpty()) {
+					startStreaming();
+				}
+			}
+			break;
+		case XMLStreamConstants.END_ELEMENT:
+			if (getDepth() < skip) {
+				fireMessage(ctx, e, allocator.allocate(reader));
+			} else if (lazy) {
+				if (getDepth() == skip) {
+					final XMLElement element = new LazyXMLElement(head, context, getStanzaBytes(), model);
+					head = null;
+					fireMessage(ctx, e, element);
+				}
+			} else {
+				if (writer != null && getDepth() == streamDepth) {
+					endStreaming();
+				}
+				final XMLElement element = builder.endElement();
+				if (element != null) {
+					if (keepingRawBytes && element instanceof CompactXMLElement) {
+						((CompactXMLElement) element).setRawBytes(getStanzaBytes());
+					}
+					fireMessage(ctx, e, element);
+				}
+			}
+			break;
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+			if (writer != null) {
+				writer.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+			} else if (builder.isBuilding()) {
+				builder.characters(reader);
+			}
+			break;
+		}
+	}
+
+	private void startStreaming() throws Exception {
+		final StreamingConsumer consumer = consumers.get(Strings.nullToEmpty(reader.getNamespaceURI()), reader.getLocalName());
+		if (consumer == null)
+			return;
+
+		writer = checkNotNull(consumer.open(builder.markStreamed()));
+		streamDepth = getDepth();
+		setStreaming(true);
+	}
+
+	private void endStreaming() throws Exception {
+		final Writer closing = writer;
+		writer = null;
+		setStreaming(false);
+		closing.close();
+	}
+
+	/**
+	 * Adds the namespaces declared by a stream-level element to the context of lazy stanzas.
+	 */
+	private void addContext() {
+		if (!lazy || reader.getNamespaceCount() == 0)
+			return;
+
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			namespaces.put(Strings.nullToEmpty(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+		}
+
+		final StringBuilder tag = new StringBuilder("<context");
+		for (final Map.Entry<String, String> namespace : namespaces.entrySet()) {
+			tag.append(" xmlns");
+			if (!namespace.getKey().isEmpty()) {
+				tag.append(':').append(namespace.getKey());
+			}
+			tag.append("='").append(namespace.getValue().replace("&", "&amp;").replace("<", "&lt;").replace("'", "&apos;")).append('\'');
+		}
+		tag.append('>');
+
+		context = tag.toString().getBytes(CharsetUtil.UTF_8);
+	}
+
+}
@@ -16,59 +16,152 @@
 
 package es.udc.pfc.xmpp.handler;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
-import org.jboss.netty.util.CharsetUtil;
 
 import es.udc.pfc.xmpp.component.XMPPComponent;
 import es.udc.pfc.xmpp.stanza.IQ;
 import es.udc.pfc.xmpp.stanza.Message;
 import es.udc.pfc.xmpp.stanza.Presence;
 import es.udc.pfc.xmpp.stanza.Stanza;
+import es.udc.pfc.xmpp.xml.HasRawBytes;
+import es.udc.pfc.xmpp.xml.XMLElement;
+import es.udc.pfc.xmpp.xml.XMLSerializer;
 
 /**
  * Handles XMPP Stanzas.
  */
 public class XMPPStreamHandler extends SimpleChannelHandler {
 	
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
 	private final XMPPComponent callback;
+	private boolean writable;
+	private volatile boolean ready;
+	@Nullable
+	private volatile String streamNamespace;
 
 	public XMPPStreamHandler(XMPPComponent callback) {
 		this.callback = callback;
+		this.writable = true;
 	}
 
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (e.getMessage() instanceof MessageBatch) {
+			final MessageBatch batch = (MessageBatch) e.getMessage();
+			for (int i = 0; i < batch.size(); i++) {
+				// A failing stanza must not prevent the rest from being delivered
+				try {
+					dispatch(ctx, batch.get(i));
+				} catch (Exception ex) {
+					Channels.fireExceptionCaught(ctx, ex);
+				}
+			}
+			return;
+		}
+
 		if (!(e.getMessage() instanceof Stanza)) {
 			ctx.sendUpstream(e);
 			return;
 		}
 
-		final Stanza stanza = (Stanza) e.getMessage();
-		if (stanza instanceof Message) {
-			callback.receivedMessage((Message) stanza);
-		} else if (stanza instanceof Presence) {
-			callback.receivedPresence((Presence) stanza);
-		} else if (stanza instanceof IQ) {
-			callback.receivedIQ((IQ) stanza);
+		dispatch(ctx, e.getMessage());
+	}
+
+	private void dispatch(ChannelHandlerContext ctx, Object message) throws Exception {
+		if (!(message instanceof Stanza)) {
+			Channels.fireMessageReceived(ctx, message);
+			return;
+		}
+
+		final Stanza stanza = (Stanza) message;
+		try {
+			if (stanza instanceof Message) {
+				callback.receivedMessage((Message) stanza);
+			} else if (stanza instanceof Presence) {
+				callback.receivedPresence((Presence) stanza);
+			} else if (stanza instanceof IQ) {
+				callback.receivedIQ((IQ) stanza);
+			}
+		} finally {
+			// Pooled stanzas are recycled unless the callback retained them
+			stanza.release();
 		}
 	}
 
 	@Override
 	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-		if (!(e.getMessage() instanceof Stanza)) {
+		final PrioritizedMessage prioritized = e.getMessage() instanceof PrioritizedMessage ? (PrioritizedMessage) e.getMessage() : null;
+		final Object message = prioritized != null ? prioritized.getMessage() : e.getMessage();
+		if (!(message instanceof Stanza)) {
 			ctx.sendDownstream(e);
 			return;
 		}
 
-		Channels.write(ctx, e.getFuture(), ChannelBuffers.copiedBuffer(e.getMessage().toString(), CharsetUtil.UTF_8));
+		final ChannelBuffer buffer = serialize(ctx, (Stanza) message);
+		if (ctx.getPipeline().get(PriorityWriteHandler.class) == null) {
+			Channels.write(ctx, e.getFuture(), buffer);
+			return;
+		}
+
+		// The serialized stanza is queued with the priority of the stanza itself
+		final WritePriority priority = prioritized != null ? prioritized.getPriority() : WritePriority.of(message);
+		Channels.write(ctx, e.getFuture(), new PrioritizedMessage(buffer, priority));
+	}
+
+	private ChannelBuffer serialize(ChannelHandlerContext ctx, Stanza stanza) {
+		final XMLElement xml = stanza.getXML();
+		final byte[] rawBytes = xml instanceof HasRawBytes ? ((HasRawBytes) xml).getRawBytes() : null;
+		if (rawBytes != null) {
+			// Unmodified stanzas are written exactly as they were received
+			return ChannelBuffers.wrappedBuffer(rawBytes);
+		}
+
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(INITIAL_BUFFER_SIZE, ctx.getChannel().getConfig().getBufferFactory());
+		XMLSerializer.write(xml, buffer, streamNamespace);
+		return buffer;
+	}
+	
+	/**
+	 * Returns the default namespace of the stream, which stanzas are written in.
+	 * 
+	 * @return the stream namespace, or {@code null} if the stream is not open yet
+	 */
+	@Nullable
+	public String getStreamNamespace() {
+		return streamNamespace;
+	}
+	
+	/**
+	 * Sets the default namespace of the stream, so stanzas in it don't declare it again.
+	 * 
+	 * @param streamNamespace the stream namespace
+	 */
+	public void setStreamNamespace(final String streamNamespace) {
+		this.streamNamespace = checkNotNull(streamNamespace);
+	}
+	
+	/**
+	 * Returns whether the stream is logged in, so stanzas can be sent through it.
+	 * 
+	 * @return {@code true} if logged in and not disconnected yet
+	 */
+	public boolean isReady() {
+		return ready;
 	}
 	
 	public void loggedIn() {
+		ready = true;
 		callback.connected();
 	}
 	
@@ -79,8 +172,21 @@ public class XMPPStreamHandler extends SimpleChannelHandler {
 		ctx.sendDownstream(e);
 	}
 	
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// Interest also changes when reading is suspended, which doesn't concern the component
+		final boolean nowWritable = ctx.getChannel().isWritable();
+		if (nowWritable != writable) {
+			writable = nowWritable;
+			callback.writabilityChanged(ctx.getChannel(), nowWritable);
+		}
+		
+		ctx.sendUpstream(e);
+	}
+	
 	@Override
 	public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		ready = false;
 		callback.disconnected();
 		
 		ctx.sendUpstream(e);
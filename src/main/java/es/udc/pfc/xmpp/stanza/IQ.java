@@ -26,13 +26,6 @@ import es.udc.pfc.xmpp.xml.XMLElement;
  * @see <a href="http://xmpp.org/rfcs/rfc6120.html#stanzas-semantics-iq">RFC 6120 - Section 8.2.3</a>
  */
 public class IQ extends Stanza {
-	
-	private static final String rid;
-	private static int cid = 1;
-	
-	static {
-		rid = Long.toHexString(Double.doubleToLongBits(Math.random()));
-	}
 
 	/**
 	 * Possible <i>type</i> values for IQs.
@@ -60,16 +53,47 @@ public class IQ extends Stanza {
 	 * @param type the type for the new IQ
 	 */
 	public IQ(final Type type) {
+		this(type, IQIdGenerator.getDefault());
+	}
+
+	/**
+	 * Create a new IQ with the given type, and an ID from the given generator.
+	 * 
+	 * @param type the type for the new IQ
+	 * @param generator the generator of the ID
+	 */
+	public IQ(final Type type, final IQIdGenerator generator) {
+		this(type, generator.nextId());
+	}
+
+	/**
+	 * Create a new IQ with the given type and ID.
+	 * 
+	 * @param type the type for the new IQ
+	 * @param id the ID for the new IQ, or {@code null} for none
+	 */
+	private IQ(final Type type, @Nullable final String id) {
 		super("iq");
 		setType(type);
-		setRandomID();
+		setId(id);
 	}
 	
 	/**
-	 * Sets a random ID for this Stanza.
+	 * Sets a random ID for this Stanza, from the default generator.
+	 * 
+	 * @see IQIdGenerator#getDefault()
 	 */
 	public final void setRandomID() {
-		setId(rid + '-' + cid++);
+		setRandomID(IQIdGenerator.getDefault());
+	}
+	
+	/**
+	 * Sets a random ID for this Stanza, from the given generator.
+	 * 
+	 * @param generator the generator of the ID
+	 */
+	public final void setRandomID(final IQIdGenerator generator) {
+		setId(generator.nextId());
 	}
 
 	/**
@@ -113,6 +137,35 @@ public class IQ extends Stanza {
 		return getType() == Type.result || getType() == Type.error;
 	}
 
+	/**
+	 * Returns the payload of this IQ, which is its first child element.
+	 * 
+	 * @return the payload, or {@code null} if none
+	 */
+	@Nullable
+	public final XMLElement getPayload() {
+		return xml.getFirstChild("*", "*");
+	}
+
+	/**
+	 * Creates an error response to this IQ.
+	 * 
+	 * @param type the type of the error, such as <i>cancel</i> or <i>wait</i>
+	 * @param condition the defined condition of the error, such as <i>service-unavailable</i>
+	 * @return the new error IQ
+	 * @see <a href="http://xmpp.org/rfcs/rfc6120.html#stanzas-error">RFC 6120 - Section 8.3</a>
+	 */
+	public final IQ createError(final String type, final String condition) {
+		final IQ error = new IQ(Type.error, getId());
+		error.setFrom(getTo());
+		error.setTo(getFrom());
+
+		final XMLElement element = error.addExtension("error", null);
+		element.setAttribute("type", type);
+		element.addChild(condition, XMPPNamespaces.STANZAS);
+		return error;
+	}
+
 	/**
 	 * Retrieves the query from this IQ.
 	 * 
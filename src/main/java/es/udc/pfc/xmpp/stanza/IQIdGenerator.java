@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.stanza;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates short, unique stanza IDs.
+ * 
+ * IDs are a random prefix, which tells generators apart, followed by a
+ * counter, in a fixed width of {@value #LENGTH} characters. The counter is
+ * incremented atomically, so a generator can be shared by any threads
+ * without locking, and IDs can be {@link #parse(String) parsed} back into
+ * their counter value to be used as a {@code long} key.
+ * 
+ * A process-wide generator is used {@link #getDefault() by default}, but
+ * each connection can use its own.
+ */
+public final class IQIdGenerator {
+
+	/** The length of generated IDs. */
+	public static final int LENGTH = 12;
+
+	private static final int PREFIX_LENGTH = 4;
+	private static final int BITS_PER_CHAR = 6;
+	private static final long COUNTER_MASK = (1L << (LENGTH - PREFIX_LENGTH) * BITS_PER_CHAR) - 1;
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final byte[] VALUES = new byte[0x80];
+
+	static {
+		Arrays.fill(VALUES, (byte) -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	private static final IQIdGenerator defaultGenerator = new IQIdGenerator();
+
+	private final char[] prefix;
+	private final AtomicLong counter;
+
+	/**
+	 * Creates a generator with a random prefix.
+	 */
+	public IQIdGenerator() {
+		this(new Random().nextInt());
+	}
+
+	/**
+	 * Creates a generator with the given prefix.
+	 * 
+	 * @param seed the value the prefix is built from, of which only the lowest 24 bits are used
+	 */
+	public IQIdGenerator(final int seed) {
+		prefix = new char[PREFIX_LENGTH];
+		for (int i = PREFIX_LENGTH - 1, bits = seed; i >= 0; i--, bits >>>= BITS_PER_CHAR) {
+			prefix[i] = ALPHABET[bits & (1 << BITS_PER_CHAR) - 1];
+		}
+		counter = new AtomicLong();
+	}
+
+	/**
+	 * Returns the process-wide generator.
+	 * 
+	 * @return the default generator
+	 */
+	public static IQIdGenerator getDefault() {
+		return defaultGenerator;
+	}
+
+	/**
+	 * Returns the next counter value, which is never negative.
+	 * 
+	 * @return a value not returned recently by this generator
+	 */
+	public long next() {
+		return counter.incrementAndGet() & COUNTER_MASK;
+	}
+
+	/**
+	 * Returns a new ID.
+	 * 
+	 * @return the ID for the next counter value
+	 */
+	public String nextId() {
+		return format(next());
+	}
+
+	/**
+	 * Returns the ID for a counter value.
+	 * 
+	 * @param value the counter value
+	 * @return the ID, with this generator's prefix
+	 */
+	public String format(final long value) {
+		checkArgument(value >= 0 && value <= COUNTER_MASK, "Value out of range");
+
+		final char[] id = new char[LENGTH];
+		System.arraycopy(prefix, 0, id, 0, PREFIX_LENGTH);
+		long bits = value;
+		for (int i = LENGTH - 1; i >= PREFIX_LENGTH; i--, bits >>>= BITS_PER_CHAR) {
+			id[i] = ALPHABET[(int) bits & (1 << BITS_PER_CHAR) - 1];
+		}
+		return new String(id);
+	}
+
+	/**
+	 * Returns the counter value of an ID generated by this generator.
+	 * 
+	 * @param id the ID to parse
+	 * @return the counter value, or -1 if the ID was not generated by this generator
+	 */
+	public long parse(final String id) {
+		checkNotNull(id);
+		if (id.length() != LENGTH)
+			return -1;
+
+		for (int i = 0; i < PREFIX_LENGTH; i++) {
+			if (id.charAt(i) != prefix[i])
+				return -1;
+		}
+
+		long value = 0;
+		for (int i = PREFIX_LENGTH; i < LENGTH; i++) {
+			final char c = id.charAt(i);
+			if (c >= 0x80 || VALUES[c] < 0)
+				return -1;
+			value = value << BITS_PER_CHAR | VALUES[c];
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "IQIdGenerator(" + new String(prefix) + ")";
+	}
+
+}
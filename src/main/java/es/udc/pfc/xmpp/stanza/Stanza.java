@@ -23,6 +23,9 @@ import javax.annotation.Nullable;
 import es.udc.pfc.xmpp.xml.HasXML;
 import es.udc.pfc.xmpp.xml.XMLBuilder;
 import es.udc.pfc.xmpp.xml.XMLElement;
+import es.udc.pfc.xmpp.xml.XMLElementPool;
+import es.udc.pfc.xmpp.xml.XMLSerializer;
+import es.udc.pfc.xmpp.xml.XMLSymbols;
 
 /**
  * Represents an XMPP Stanza.
@@ -32,10 +35,23 @@ import es.udc.pfc.xmpp.xml.XMLElement;
  */
 public abstract class Stanza implements HasXML {
 
+	static {
+		XMLSymbols.register(XMPPNamespaces.class);
+		final String[] names = { "message", "presence", "iq", "id", "from", "to", "type", "body", "subject", "thread", "show", "status", "priority", "error", "query", "x", "text" };
+		XMLSymbols.register(names);
+		XMLSerializer.registerNames(names);
+		XMLSymbols.register(Message.Type.values());
+		XMLSymbols.register(Presence.Type.values());
+		XMLSymbols.register(Presence.Show.values());
+		XMLSymbols.register(IQ.Type.values());
+	}
+
 	/**
 	 * Holds the XML element associated with this stanza.
+	 * 
+	 * Once a pooled stanza is released, this is replaced by {@link XMLElementPool#RELEASED}.
 	 */
-	protected final XMLElement xml;
+	protected XMLElement xml;
 
 	/**
 	 * Creates a new stanza from an XML element.
@@ -170,6 +186,40 @@ public abstract class Stanza implements HasXML {
 		return null;
 	}
 	
+	/**
+	 * Adds a reference to this stanza.
+	 * 
+	 * Pooled stanzas are released as soon as the callback which received them
+	 * returns, so they must be retained to be used after that, and released
+	 * when they're no longer needed. This has no effect on stanzas which are
+	 * not pooled.
+	 * 
+	 * @return this stanza
+	 * @throws IllegalStateException if the stanza was already released
+	 */
+	public final Stanza retain() {
+		XMLElementPool.retain(xml);
+		return this;
+	}
+
+	/**
+	 * Removes a reference to this stanza.
+	 * 
+	 * When no references are left, the XML element of a pooled stanza is
+	 * recycled, and using this stanza afterwards throws an {@link IllegalStateException}.
+	 * This has no effect on stanzas which are not pooled.
+	 * 
+	 * @return {@code true} if the stanza was recycled
+	 * @throws IllegalStateException if the stanza was already released
+	 */
+	public final boolean release() {
+		if (!XMLElementPool.release(xml))
+			return false;
+
+		xml = XMLElementPool.RELEASED;
+		return true;
+	}
+
 	@Override
 	public final XMLElement getXML() {
 		return xml;
@@ -53,6 +53,10 @@ public final class XMPPNamespaces {
 	public static final String BIND = "urn:ietf:params:xml:ns:xmpp-bind";
 	/** {@value} */
 	public static final String SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+	/** {@value} */
+	public static final String STREAMS = "urn:ietf:params:xml:ns:xmpp-streams";
+	/** {@value} */
+	public static final String STANZAS = "urn:ietf:params:xml:ns:xmpp-stanzas";
 	
 	/** {@value} */
 	public static final String STREAM = "http://etherx.jabber.org/streams";
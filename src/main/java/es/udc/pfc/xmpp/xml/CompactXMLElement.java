@@ -0,0 +1,753 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Compact implementation of XMLElement.
+ * 
+ * Instead of wrapping a DOM tree, elements keep canonical names from
+ * {@link XMLSymbols}, a flat array
+ * of attribute names and values, and a list of children where text nodes are
+ * stored as plain Strings. Parents and children are returned as they are,
+ * without creating wrappers.
+ * 
+ * A parsed element can keep the bytes it was parsed from, which are discarded
+ * as soon as the element or any of its descendants is modified.
+ * 
+ * The text of streamed elements is not kept, as it was handed to a consumer
+ * while parsing.
+ * 
+ * Elements built by a pooled builder are recycled through the
+ * {@link XMLElementPool} once they're released.
+ */
+public final class CompactXMLElement implements XMLElement, HasRawBytes {
+
+	private static final String[] NO_ATTRIBUTES = new String[0];
+	private static final Object[] NO_CHILDREN = new Object[0];
+	private static final String XMLNS_PREFIX = XMLConstants.XMLNS_ATTRIBUTE + ':';
+
+	// Larger arrays are not kept by pooled elements
+	private static final int MAX_POOLED_LENGTH = 64;
+
+	private static final AtomicIntegerFieldUpdater<CompactXMLElement> referencesUpdater = AtomicIntegerFieldUpdater.newUpdater(CompactXMLElement.class, "references");
+
+	private String name;
+	@Nullable
+	private String namespace;
+	@Nullable
+	private CompactXMLElement parent;
+
+	private String[] attributes;
+	private int attributeCount;
+
+	private Object[] children;
+	private int childCount;
+
+	@Nullable
+	private byte[] rawBytes;
+	private boolean streamed;
+
+	private final boolean pooled;
+	private volatile int references;
+
+	protected CompactXMLElement(final String name) {
+		this(name, null);
+	}
+
+	protected CompactXMLElement(final String name, @Nullable final String namespace) {
+		this(XMLSymbols.intern(name), namespace != null ? XMLSymbols.intern(namespace) : null, 0);
+	}
+
+	/**
+	 * Creates a new element with names which are already canonical.
+	 * 
+	 * @param name the canonical tag name
+	 * @param namespace the canonical namespace, or {@code null}
+	 * @param attributes the expected number of attributes
+	 */
+	CompactXMLElement(final String name, @Nullable final String namespace, final int attributes) {
+		this(name, namespace, attributes, false);
+	}
+
+	/**
+	 * Creates a new element which may be recycled.
+	 * 
+	 * @param name the canonical tag name
+	 * @param namespace the canonical namespace, or {@code null}
+	 * @param attributes the expected number of attributes
+	 * @param pooled whether the element should be returned to the pool once released
+	 */
+	CompactXMLElement(final String name, @Nullable final String namespace, final int attributes, final boolean pooled) {
+		this.name = name;
+		this.namespace = namespace;
+		this.attributes = attributes > 0 ? new String[attributes * 2] : NO_ATTRIBUTES;
+		this.children = NO_CHILDREN;
+		this.pooled = pooled;
+		this.references = 1;
+	}
+
+	/**
+	 * Creates an empty pooled element which reuses the arrays of a recycled one.
+	 * 
+	 * @param attributes the cleared attribute array
+	 * @param children the cleared children array
+	 */
+	private CompactXMLElement(final String[] attributes, final Object[] children) {
+		this.attributes = attributes;
+		this.children = children;
+		this.pooled = true;
+	}
+
+	@Override
+	public String getTagName() {
+		checkNotReleased();
+		return name;
+	}
+
+	@Override
+	public String getNamespace() {
+		checkNotReleased();
+		return namespace;
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getParent() {
+		checkNotReleased();
+		return parent;
+	}
+
+	@Override
+	public XMLElement getFirstParent() {
+		checkNotReleased();
+
+		CompactXMLElement element = this;
+		while (element.parent != null) {
+			element = element.parent;
+		}
+		return element;
+	}
+
+	@Override
+	public boolean hasAttribute(final String name) {
+		checkNotReleased();
+		return indexOfAttribute(checkNotNull(name)) >= 0;
+	}
+
+	@Override
+	public ImmutableMap<String, String> getAttributes() {
+		checkNotReleased();
+
+		final ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
+		for (int i = 0; i < attributeCount; i += 2) {
+			result.put(attributes[i], attributes[i + 1]);
+		}
+		return result.build();
+	}
+
+	@Override
+	@Nullable
+	public String getAttribute(final String name) {
+		checkNotReleased();
+
+		final int index = indexOfAttribute(checkNotNull(name));
+		return index >= 0 ? attributes[index + 1] : null;
+	}
+
+	@Override
+	public void setAttribute(final String name, @Nullable final String value) {
+		checkNotReleased();
+
+		final int index = indexOfAttribute(checkNotNull(name));
+		modified();
+
+		if (value == null) {
+			if (index >= 0) {
+				System.arraycopy(attributes, index + 2, attributes, index, attributeCount - index - 2);
+				attributeCount -= 2;
+				attributes[attributeCount] = null;
+				attributes[attributeCount + 1] = null;
+			}
+		} else if (index >= 0) {
+			attributes[index + 1] = value;
+		} else {
+			appendAttribute(XMLSymbols.intern(name), value);
+		}
+	}
+
+	@Override
+	public boolean hasChild(final String name) {
+		return hasChild(name, "*");
+	}
+
+	@Override
+	public boolean hasChild(final String name, final String namespace) {
+		return getFirstChild(name, namespace) != null;
+	}
+
+	@Override
+	public XMLElement addChild(final String name) {
+		return addChild(name, null);
+	}
+
+	@Override
+	public XMLElement addChild(final String name, @Nullable final String namespace) {
+		checkNotReleased();
+
+		final CompactXMLElement child = new CompactXMLElement(name, namespace);
+		modified();
+		appendChild(child);
+		return child;
+	}
+
+	@Override
+	public XMLElement addChild(final HasXML child) {
+		checkNotReleased();
+
+		final CompactXMLElement copy = copyOf(checkNotNull(child.getXML()));
+		modified();
+		appendChild(copy);
+		return copy;
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getFirstChild(final String name) {
+		return getFirstChild(name, "*");
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getFirstChild(final String name, final String namespace) {
+		checkNotReleased();
+		checkNotNull(name);
+		checkNotNull(namespace);
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] instanceof CompactXMLElement) {
+				final CompactXMLElement element = (CompactXMLElement) children[i];
+				if (element.matches(name, namespace))
+					return element;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getFirstChild(final Predicate<XMLElement> matcher) {
+		checkNotReleased();
+		checkNotNull(matcher);
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] instanceof CompactXMLElement) {
+				final CompactXMLElement element = (CompactXMLElement) children[i];
+				if (matcher.apply(element))
+					return element;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren() {
+		return getChildren("*", "*");
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren(final String name) {
+		return getChildren(name, "*");
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren(final String name, final String namespace) {
+		checkNotReleased();
+		checkNotNull(name);
+		checkNotNull(namespace);
+
+		final ImmutableList.Builder<XMLElement> result = ImmutableList.builder();
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] instanceof CompactXMLElement) {
+				final CompactXMLElement element = (CompactXMLElement) children[i];
+				if (element.matches(name, namespace)) {
+					result.add(element);
+				}
+			}
+		}
+
+		return result.build();
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren(final Predicate<XMLElement> matcher) {
+		checkNotReleased();
+		checkNotNull(matcher);
+
+		final ImmutableList.Builder<XMLElement> result = ImmutableList.builder();
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] instanceof CompactXMLElement) {
+				final CompactXMLElement element = (CompactXMLElement) children[i];
+				if (matcher.apply(element)) {
+					result.add(element);
+				}
+			}
+		}
+
+		return result.build();
+	}
+
+	@Override
+	public void removeChild(final HasXML child) {
+		checkNotReleased();
+
+		final XMLElement element = checkNotNull(child.getXML());
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] == element) {
+				modified();
+				System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+				children[--childCount] = null;
+				((CompactXMLElement) element).parent = null;
+				return;
+			}
+		}
+
+		throw new IllegalArgumentException("Not a child of this element");
+	}
+
+	@Override
+	public String getText() {
+		checkNotReleased();
+
+		if (childCount == 0)
+			return "";
+		if (childCount == 1 && children[0] instanceof String)
+			return (String) children[0];
+
+		final StringBuilder text = new StringBuilder();
+		appendText(text);
+		return text.toString();
+	}
+
+	@Override
+	@Nullable
+	public String getChildText(final String name) {
+		return getChildText(name, "*");
+	}
+
+	@Override
+	@Nullable
+	public String getChildText(final String name, final String namespace) {
+		final XMLElement child = getFirstChild(name, namespace);
+		if (child == null)
+			return null;
+
+		return child.getText();
+	}
+
+	@Override
+	public void setText(@Nullable final String text) {
+		checkNotReleased();
+
+		modified();
+		streamed = false;
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] instanceof CompactXMLElement) {
+				((CompactXMLElement) children[i]).parent = null;
+			}
+			children[i] = null;
+		}
+		childCount = 0;
+
+		if (text != null && !text.isEmpty()) {
+			appendText(text);
+		}
+	}
+
+	@Override
+	public void setChildText(final String name, @Nullable final String text) {
+		setChildText(name, null, text);
+	}
+
+	@Override
+	public void setChildText(final String name, @Nullable final String namespace, @Nullable final String text) {
+		XMLElement child = getFirstChild(name, namespace != null ? namespace : "*");
+		if (child == null) {
+			child = addChild(name, namespace);
+		}
+
+		child.setText(text);
+	}
+
+	@Override
+	public XMLElement getXML() {
+		checkNotReleased();
+		return this;
+	}
+
+	@Override
+	@Nullable
+	public byte[] getRawBytes() {
+		checkNotReleased();
+		return rawBytes;
+	}
+
+	/**
+	 * Sets the bytes this element was parsed from.
+	 * 
+	 * Only the outermost element can keep its bytes, and they must be the
+	 * exact UTF-8 bytes the element was built from. The array must not be
+	 * modified afterwards.
+	 * 
+	 * @param rawBytes the original bytes of this element
+	 */
+	public void setRawBytes(@Nullable final byte[] rawBytes) {
+		checkArgument(rawBytes == null || parent == null, "Only the outermost element can keep its bytes");
+		this.rawBytes = rawBytes;
+	}
+
+	/**
+	 * Checks if the text of this element was streamed.
+	 * 
+	 * Streamed elements were received without their text, which was handed to
+	 * a streaming consumer instead, so {@link #getText()} doesn't return it.
+	 * 
+	 * @return {@code true} if the text of this element was streamed
+	 */
+	public boolean isStreamed() {
+		checkNotReleased();
+		return streamed;
+	}
+
+	void setStreamed(final boolean streamed) {
+		this.streamed = streamed;
+	}
+
+	/**
+	 * Parses a string into a XMLElement.
+	 * 
+	 * @param xml the string to parse
+	 * @return the resulting element
+	 */
+	public static XMLElement fromString(final String xml) {
+		return XMLStreamBuilder.create(XMLModel.COMPACT).parse(xml);
+	}
+
+	@Override
+	public String toString() {
+		checkNotReleased();
+
+		return XMLSerializer.serialize(this).toString(CharsetUtil.UTF_8);
+	}
+
+	/**
+	 * Appends an attribute without checking if it already exists.
+	 * 
+	 * @param name the canonical attribute name
+	 * @param value the attribute value
+	 */
+	void appendAttribute(final String name, final String value) {
+		if (attributeCount == attributes.length) {
+			attributes = Arrays.copyOf(attributes, Math.max(4, attributeCount * 2));
+		}
+		attributes[attributeCount++] = name;
+		attributes[attributeCount++] = value;
+	}
+
+	/**
+	 * Appends a text node after the last child.
+	 * 
+	 * @param text the text to append
+	 */
+	void appendText(final String text) {
+		appendNode(text);
+	}
+
+	/**
+	 * Appends an element which has no parent after the last child.
+	 * 
+	 * @param child the element to append
+	 */
+	void appendChild(final CompactXMLElement child) {
+		checkArgument(child.parent == null, "Element already has a parent");
+
+		child.parent = this;
+		appendNode(child);
+	}
+
+	boolean isPooled() {
+		return pooled;
+	}
+
+	/**
+	 * Adds a reference to this element.
+	 */
+	void retain() {
+		checkArgument(parent == null, "Only the outermost element can be retained");
+
+		for (;;) {
+			final int count = references;
+			checkState(count > 0, "Element already released");
+			if (referencesUpdater.compareAndSet(this, count, count + 1))
+				return;
+		}
+	}
+
+	/**
+	 * Removes a reference to this element.
+	 * 
+	 * @return {@code true} if no references are left
+	 */
+	boolean release() {
+		checkArgument(parent == null, "Only the outermost element can be released");
+
+		for (;;) {
+			final int count = references;
+			checkState(count > 0, "Element already released");
+			if (referencesUpdater.compareAndSet(this, count, count - 1))
+				return count == 1;
+		}
+	}
+
+	/**
+	 * Prepares a recycled element to be used again.
+	 * 
+	 * @param name the canonical tag name
+	 * @param namespace the canonical namespace, or {@code null}
+	 * @param attributes the expected number of attributes
+	 */
+	void reuse(final String name, @Nullable final String namespace, final int attributes) {
+		this.name = name;
+		this.namespace = namespace;
+		if (this.attributes.length < attributes * 2) {
+			this.attributes = new String[attributes * 2];
+		}
+		references = 1;
+	}
+
+	/**
+	 * Clears this element and its descendants, returning the arrays of the
+	 * pooled ones to the pool.
+	 * 
+	 * The elements themselves are never reused, so any reference which is
+	 * still kept to them throws an {@link IllegalStateException} instead of
+	 * reading the next tree built from the same arrays.
+	 */
+	void recycle() {
+		references = 0;
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] instanceof CompactXMLElement) {
+				final CompactXMLElement child = (CompactXMLElement) children[i];
+				child.parent = null;
+				child.recycle();
+			}
+			children[i] = null;
+		}
+
+		Arrays.fill(attributes, 0, attributeCount, null);
+
+		if (pooled) {
+			XMLElementPool.offer(new CompactXMLElement(attributes.length > MAX_POOLED_LENGTH ? NO_ATTRIBUTES : attributes,
+					children.length > MAX_POOLED_LENGTH ? NO_CHILDREN : children));
+		}
+
+		attributes = NO_ATTRIBUTES;
+		attributeCount = 0;
+		children = NO_CHILDREN;
+		childCount = 0;
+		parent = null;
+		rawBytes = null;
+		streamed = false;
+	}
+
+	private void checkNotReleased() {
+		checkState(references > 0, "Element already released");
+	}
+
+	private void modified() {
+		CompactXMLElement element = this;
+		while (element.parent != null) {
+			element = element.parent;
+		}
+		element.rawBytes = null;
+	}
+
+	private void appendNode(final Object node) {
+		if (childCount == children.length) {
+			children = Arrays.copyOf(children, Math.max(2, childCount * 2));
+		}
+		children[childCount++] = node;
+	}
+
+	private int indexOfAttribute(final String name) {
+		// Names are usually canonical, so try identity before comparing
+		for (int i = 0; i < attributeCount; i += 2) {
+			if (name == attributes[i])
+				return i;
+		}
+		for (int i = 0; i < attributeCount; i += 2) {
+			if (name.equals(attributes[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	private boolean matches(final String name, final String namespace) {
+		if (name != this.name && !"*".equals(name) && !name.equals(this.name))
+			return false;
+
+		if (namespace != this.namespace && !"*".equals(namespace) && !namespace.equals(this.namespace))
+			return false;
+
+		return true;
+	}
+
+	private void appendText(final StringBuilder text) {
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] instanceof String) {
+				text.append((String) children[i]);
+			} else {
+				((CompactXMLElement) children[i]).appendText(text);
+			}
+		}
+	}
+
+	/**
+	 * Writes this element as UTF-8, declaring only the namespaces not yet in scope.
+	 * 
+	 * Elements with no namespace inherit the default namespace in scope,
+	 * unless they undeclare it with an empty {@code xmlns} attribute, as
+	 * parsed ones in no namespace do.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param inheritedNamespace the default namespace in scope, or {@code null}
+	 * @param skippedAttribute the name of an attribute of this element to leave out, or {@code null}
+	 */
+	void write(final ChannelBuffer buffer, @Nullable final String inheritedNamespace, @Nullable final String skippedAttribute) {
+		checkNotReleased();
+
+		// Prefixes and namespaces in scope, in pairs, the default one with an empty prefix
+		final List<String> scope = Lists.newArrayList("", Strings.nullToEmpty(inheritedNamespace));
+		write(buffer, scope, skippedAttribute);
+	}
+
+	private void write(final ChannelBuffer buffer, final List<String> scope, @Nullable final String skippedAttribute) {
+		final int mark = scope.size();
+		XMLSerializer.writeStartTag(buffer, name);
+
+		if (namespace != null) {
+			final int colon = name.indexOf(':');
+			XMLSerializer.declare(buffer, scope, mark, colon < 0 ? "" : name.substring(0, colon), namespace);
+		}
+
+		for (int i = 0; i < attributeCount; i += 2) {
+			final String attributeName = attributes[i];
+			if (attributeName.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+				XMLSerializer.declare(buffer, scope, mark, "", attributes[i + 1]);
+			} else if (attributeName.startsWith(XMLNS_PREFIX)) {
+				XMLSerializer.declare(buffer, scope, mark, attributeName.substring(XMLNS_PREFIX.length()), attributes[i + 1]);
+			} else if (!attributeName.equals(skippedAttribute)) {
+				XMLSerializer.writeAttributeName(buffer, attributeName);
+				XMLSerializer.writeEscaped(buffer, attributes[i + 1], true);
+				buffer.writeByte('"');
+			}
+		}
+
+		if (childCount == 0) {
+			buffer.writeByte('/');
+			buffer.writeByte('>');
+		} else {
+			buffer.writeByte('>');
+			for (int i = 0; i < childCount; i++) {
+				if (children[i] instanceof String) {
+					XMLSerializer.writeEscaped(buffer, (String) children[i], false);
+				} else {
+					((CompactXMLElement) children[i]).write(buffer, scope, null);
+				}
+			}
+			XMLSerializer.writeEndTag(buffer, name);
+		}
+
+		scope.subList(mark, scope.size()).clear();
+	}
+
+	private static CompactXMLElement copyOf(final XMLElement element) {
+		if (element instanceof LazyXMLElement)
+			return copyOf(((LazyXMLElement) element).materialize());
+
+		if (element instanceof CompactXMLElement) {
+			final CompactXMLElement original = (CompactXMLElement) element;
+			final CompactXMLElement copy = new CompactXMLElement(original.name, original.namespace, original.attributeCount / 2);
+			System.arraycopy(original.attributes, 0, copy.attributes, 0, original.attributeCount);
+			copy.attributeCount = original.attributeCount;
+			copy.streamed = original.streamed;
+			for (int i = 0; i < original.childCount; i++) {
+				if (original.children[i] instanceof String) {
+					copy.appendText((String) original.children[i]);
+				} else {
+					copy.appendChild(copyOf((CompactXMLElement) original.children[i]));
+				}
+			}
+			return copy;
+		}
+
+		// Other implementations only expose element children, so mixed content is not preserved
+		final CompactXMLElement copy = new CompactXMLElement(element.getTagName(), element.getNamespace());
+		for (final Map.Entry<String, String> attribute : element.getAttributes().entrySet()) {
+			// The default namespace is kept by the element itself, unless it's undeclared
+			if (!XMLConstants.XMLNS_ATTRIBUTE.equals(attribute.getKey()) || attribute.getValue().isEmpty()) {
+				copy.appendAttribute(XMLSymbols.intern(attribute.getKey()), attribute.getValue());
+			}
+		}
+		final ImmutableList<XMLElement> children = element.getChildren();
+		if (children.isEmpty()) {
+			copy.setText(element.getText());
+		} else {
+			for (final XMLElement child : children) {
+				copy.appendChild(copyOf(child));
+			}
+		}
+		return copy;
+	}
+
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import javax.annotation.Nullable;
+
+/**
+ * Interface for elements which can keep the bytes they were parsed from.
+ * 
+ * The bytes are only available while the element is unmodified, so they can
+ * be written as they are instead of serializing the element again.
+ */
+public interface HasRawBytes {
+
+	/**
+	 * Returns the UTF-8 bytes this element was parsed from.
+	 * 
+	 * The returned array must not be modified.
+	 * 
+	 * @return the original bytes, or {@code null} if unknown or modified since parsed
+	 */
+	@Nullable
+	byte[] getRawBytes();
+
+}
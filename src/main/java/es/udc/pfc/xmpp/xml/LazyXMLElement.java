@@ -0,0 +1,261 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * XMLElement which is only built when its contents are needed.
+ * 
+ * The tag name, namespace and attributes are served from the start tag
+ * captured by the parser. The whole element is built from its retained bytes
+ * the first time anything else is accessed, or when it is modified.
+ * 
+ * The retained bytes are also available as the raw bytes of this element,
+ * until it is modified.
+ */
+public final class LazyXMLElement implements XMLElement, HasRawBytes {
+
+	private final XMLElement head;
+	private final byte[] context;
+	private final byte[] source;
+	private final XMLModel model;
+	@Nullable
+	private XMLElement element;
+
+	/**
+	 * Creates a new lazy element.
+	 * 
+	 * @param head an element with the tag name, namespace and attributes of the start tag
+	 * @param context the UTF-8 bytes of a start tag declaring the namespaces in scope
+	 * @param source the UTF-8 bytes of the whole element
+	 * @param model the model used to build the element
+	 */
+	public LazyXMLElement(final XMLElement head, final byte[] context, final byte[] source, final XMLModel model) {
+		this.head = checkNotNull(head);
+		this.context = checkNotNull(context);
+		this.source = checkNotNull(source);
+		this.model = checkNotNull(model);
+	}
+
+	/**
+	 * Checks if the element has already been built.
+	 * 
+	 * @return {@code true} if the element has been built, {@code false} otherwise
+	 */
+	public boolean isMaterialized() {
+		return element != null;
+	}
+
+	/**
+	 * Returns the built element, building it if needed.
+	 * 
+	 * @return the built element
+	 */
+	XMLElement materialize() {
+		if (element == null) {
+			element = XMLStreamBuilder.create(model).parse(context, source);
+			if (element instanceof CompactXMLElement) {
+				((CompactXMLElement) element).setRawBytes(source);
+			}
+		}
+		return element;
+	}
+
+	/**
+	 * Returns the built element, or a copy built from the retained bytes
+	 * which is not kept, so this element is not built by reading it.
+	 * 
+	 * @return the built element, or a new copy of it
+	 */
+	XMLElement snapshot() {
+		final XMLElement element = this.element;
+		return element != null ? element : XMLStreamBuilder.create(model).parse(context, source);
+	}
+
+	private XMLElement startTag() {
+		return element != null ? element : head;
+	}
+
+	@Override
+	public String getTagName() {
+		return head.getTagName();
+	}
+
+	@Override
+	public String getNamespace() {
+		return head.getNamespace();
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getParent() {
+		return null;
+	}
+
+	@Override
+	public XMLElement getFirstParent() {
+		return this;
+	}
+
+	@Override
+	public boolean hasAttribute(final String name) {
+		return startTag().hasAttribute(name);
+	}
+
+	@Override
+	public ImmutableMap<String, String> getAttributes() {
+		return startTag().getAttributes();
+	}
+
+	@Override
+	@Nullable
+	public String getAttribute(final String name) {
+		return startTag().getAttribute(name);
+	}
+
+	@Override
+	public void setAttribute(final String name, @Nullable final String value) {
+		materialize().setAttribute(name, value);
+	}
+
+	@Override
+	public boolean hasChild(final String name) {
+		return materialize().hasChild(name);
+	}
+
+	@Override
+	public boolean hasChild(final String name, final String namespace) {
+		return materialize().hasChild(name, namespace);
+	}
+
+	@Override
+	public XMLElement addChild(final String name) {
+		return materialize().addChild(name);
+	}
+
+	@Override
+	public XMLElement addChild(final String name, @Nullable final String namespace) {
+		return materialize().addChild(name, namespace);
+	}
+
+	@Override
+	public XMLElement addChild(final HasXML child) {
+		return materialize().addChild(child);
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getFirstChild(final String name) {
+		return materialize().getFirstChild(name);
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getFirstChild(final String name, final String namespace) {
+		return materialize().getFirstChild(name, namespace);
+	}
+
+	@Override
+	@Nullable
+	public XMLElement getFirstChild(final Predicate<XMLElement> matcher) {
+		return materialize().getFirstChild(matcher);
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren() {
+		return materialize().getChildren();
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren(final String name) {
+		return materialize().getChildren(name);
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren(final String name, final String namespace) {
+		return materialize().getChildren(name, namespace);
+	}
+
+	@Override
+	public ImmutableList<XMLElement> getChildren(final Predicate<XMLElement> matcher) {
+		return materialize().getChildren(matcher);
+	}
+
+	@Override
+	public void removeChild(final HasXML child) {
+		materialize().removeChild(child);
+	}
+
+	@Override
+	public String getText() {
+		return materialize().getText();
+	}
+
+	@Override
+	@Nullable
+	public String getChildText(final String name) {
+		return materialize().getChildText(name);
+	}
+
+	@Override
+	@Nullable
+	public String getChildText(final String name, final String namespace) {
+		return materialize().getChildText(name, namespace);
+	}
+
+	@Override
+	public void setText(@Nullable final String text) {
+		materialize().setText(text);
+	}
+
+	@Override
+	public void setChildText(final String name, @Nullable final String text) {
+		materialize().setChildText(name, text);
+	}
+
+	@Override
+	public void setChildText(final String name, @Nullable final String namespace, @Nullable final String text) {
+		materialize().setChildText(name, namespace, text);
+	}
+
+	@Override
+	public XMLElement getXML() {
+		return this;
+	}
+
+	@Override
+	@Nullable
+	public byte[] getRawBytes() {
+		if (element == null)
+			return source;
+
+		return element instanceof HasRawBytes ? ((HasRawBytes) element).getRawBytes() : null;
+	}
+
+	@Override
+	public String toString() {
+		return materialize().toString();
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import javax.annotation.Nullable;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * An element serialized once, which can be written with different values
+ * of one of its attributes.
+ * 
+ * The element is serialized without the attribute, and its bytes are
+ * shared by every write. Each write only encodes a short start tag with
+ * the attribute, followed by the shared bytes.
+ */
+public final class PatchableElement {
+
+	private final String name;
+	private final String attribute;
+	private final ChannelBuffer body;
+
+	private PatchableElement(final String name, final String attribute, final ChannelBuffer body) {
+		this.name = name;
+		this.attribute = attribute;
+		this.body = body;
+	}
+
+	/**
+	 * Serializes an element, leaving out one of its attributes.
+	 * 
+	 * The element is not modified, so it can be read by other threads meanwhile.
+	 * 
+	 * @param element the element to serialize
+	 * @param attribute the name of the attribute to leave out
+	 * @return the serialized element
+	 */
+	public static PatchableElement of(final XMLElement element, final String attribute) {
+		return of(element, attribute, null);
+	}
+
+	/**
+	 * Serializes an element inside a default namespace, leaving out one of its attributes.
+	 * 
+	 * @param element the element to serialize
+	 * @param attribute the name of the attribute to leave out
+	 * @param inheritedNamespace the default namespace already in scope, or {@code null}
+	 * @return the serialized element
+	 * @see #of(XMLElement, String)
+	 */
+	public static PatchableElement of(final XMLElement element, final String attribute, @Nullable final String inheritedNamespace) {
+		checkNotNull(element);
+		checkNotNull(attribute);
+
+		final String name = element.getTagName();
+		final ChannelBuffer buffer = XMLSerializer.serializeWithout(element, attribute, inheritedNamespace);
+
+		// The attribute is inserted right after the tag name
+		final int start = 1 + name.getBytes(CharsetUtil.UTF_8).length;
+		checkState(buffer.readableBytes() > start && buffer.getByte(0) == '<', "Unexpected serialization");
+
+		final ChannelBuffer body = ChannelBuffers.unmodifiableBuffer(buffer.slice(start, buffer.readableBytes() - start));
+		return new PatchableElement(name, attribute, body);
+	}
+
+	/**
+	 * Returns the element with the given value of the attribute.
+	 * 
+	 * @param value the value of the attribute
+	 * @return a new buffer with the serialized element
+	 */
+	public ChannelBuffer withValue(final String value) {
+		checkNotNull(value);
+
+		final ChannelBuffer header = ChannelBuffers.dynamicBuffer(name.length() + attribute.length() + value.length() + 8);
+		XMLSerializer.writeStartTag(header, name);
+		XMLSerializer.writeAttributeName(header, attribute);
+		XMLSerializer.writeEscaped(header, value, true);
+		header.writeByte('"');
+
+		return ChannelBuffers.wrappedBuffer(header, body.duplicate());
+	}
+
+	@Override
+	public String toString() {
+		return "<" + name + " " + attribute + "=\"?\"" + body.toString(CharsetUtil.UTF_8);
+	}
+
+}
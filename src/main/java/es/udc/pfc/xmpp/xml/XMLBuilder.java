@@ -32,18 +32,20 @@ public final class XMLBuilder implements HasXML {
 	 * @return the new XMLElement
 	 */
 	public static final XMLBuilder create(final String name) {
-		return new XMLBuilder(new XMLElementImpl(name));
+		return create(name, null);
 	}
 	
 	/**
 	 * Creates a new XMLElement with a given tag name and namespace.
 	 * 
+	 * The element is created with the default {@link XMLModel}.
+	 * 
 	 * @param name the tag name for the new XML element
 	 * @param namespace the namespace for the new XML element
 	 * @return the new XMLElement
 	 */
 	public static final XMLBuilder create(final String name, @Nullable final String namespace) {
-		return new XMLBuilder(new XMLElementImpl(name, namespace));
+		return new XMLBuilder(XMLModel.getDefault().newElement(name, namespace));
 	}
 	
 	private final XMLElement xml;
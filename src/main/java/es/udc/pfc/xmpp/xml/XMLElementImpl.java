@@ -19,8 +19,12 @@ package es.udc.pfc.xmpp.xml;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Map;
+
 import javax.annotation.Nullable;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -151,12 +155,36 @@ public final class XMLElementImpl implements XMLElement {
 
 	@Override
 	public XMLElement addChild(final HasXML child) {
-		checkArgument(checkNotNull(child.getXML()) instanceof XMLElementImpl);
+		XMLElement xml = checkNotNull(child.getXML());
+		if (xml instanceof LazyXMLElement) {
+			xml = ((LazyXMLElement) xml).materialize();
+		}
+		if (!(xml instanceof XMLElementImpl)) {
+			return addCopy(xml);
+		}
 
-		final Element newElement = (Element) document.importNode(((XMLElementImpl) child.getXML()).element, true);
+		final Element newElement = (Element) document.importNode(((XMLElementImpl) xml).element, true);
 		element.appendChild(newElement);
 		return new XMLElementImpl(newElement);
 	}
+	
+	private XMLElement addCopy(final XMLElement xml) {
+		// Other implementations only expose element children, so mixed content is not preserved
+		final XMLElement copy = addChild(xml.getTagName(), xml.getNamespace());
+		for (final Map.Entry<String, String> attribute : xml.getAttributes().entrySet()) {
+			copy.setAttribute(attribute.getKey(), attribute.getValue());
+		}
+		
+		final ImmutableList<XMLElement> children = xml.getChildren();
+		if (children.isEmpty()) {
+			copy.setText(xml.getText());
+		} else {
+			for (final XMLElement child : children) {
+				copy.addChild(child);
+			}
+		}
+		return copy;
+	}
 
 	@Override
 	@Nullable
@@ -334,7 +362,18 @@ public final class XMLElementImpl implements XMLElement {
 
 	@Override
 	public String toString() {
-		return XMLUtil.toString(element);
+		return XMLSerializer.serialize(this).toString(CharsetUtil.UTF_8);
+	}
+
+	/**
+	 * Writes this element as UTF-8, the same way as {@link #toString()}.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param inheritedNamespace the default namespace in scope, or {@code null}
+	 * @param skippedAttribute the name of an attribute of this element to leave out, or {@code null}
+	 */
+	void write(final ChannelBuffer buffer, @Nullable final String inheritedNamespace, @Nullable final String skippedAttribute) {
+		XMLSerializer.write(element, buffer, inheritedNamespace, skippedAttribute);
 	}
 
 }
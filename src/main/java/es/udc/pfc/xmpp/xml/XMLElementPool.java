@@ -0,0 +1,318 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Pool of compact elements.
+ * 
+ * Pooled elements are built by a {@link XMLStreamBuilder#createPooled() pooled builder}
+ * and are reference counted: the outermost element starts with one reference,
+ * and the whole tree is recycled when the last one is released. Any reference
+ * to the tree or its descendants throws an {@link IllegalStateException} after
+ * that, as only the arrays of released elements are reused, in new elements.
+ * 
+ * Recycled elements are kept in per-thread pools, which are exchanged in
+ * batches through a shared queue, so elements released by one thread can be
+ * reused by another. Both are bounded, and elements which don't fit are left
+ * to the garbage collector.
+ */
+public final class XMLElementPool {
+
+	private static final int BATCH_SIZE = 256;
+	private static final int MAX_SHARED_BATCHES = 64;
+
+	/**
+	 * Placeholder for released elements. Every method throws an {@link IllegalStateException}.
+	 */
+	public static final XMLElement RELEASED = new Released();
+
+	private static final ThreadLocal<Batch> local = new ThreadLocal<Batch>() {
+		@Override
+		protected Batch initialValue() {
+			return new Batch();
+		}
+	};
+
+	private static final Queue<CompactXMLElement[]> shared = new ConcurrentLinkedQueue<CompactXMLElement[]>();
+	private static final AtomicInteger sharedBatches = new AtomicInteger();
+
+	/**
+	 * Returns whether an element was taken from the pool.
+	 * 
+	 * @param element the element
+	 * @return {@code true} if the element is pooled
+	 */
+	public static boolean isPooled(final XMLElement element) {
+		return element instanceof CompactXMLElement && ((CompactXMLElement) element).isPooled();
+	}
+
+	/**
+	 * Adds a reference to a pooled element.
+	 * 
+	 * This has no effect on elements which are not pooled.
+	 * 
+	 * @param element the outermost element of a tree
+	 * @throws IllegalStateException if the element was already released
+	 */
+	public static void retain(final XMLElement element) {
+		checkState(element != RELEASED, "Element already released");
+		if (isPooled(element)) {
+			((CompactXMLElement) element).retain();
+		}
+	}
+
+	/**
+	 * Removes a reference to a pooled element, recycling the whole tree
+	 * when no references are left.
+	 * 
+	 * This has no effect on elements which are not pooled.
+	 * 
+	 * @param element the outermost element of a tree
+	 * @return {@code true} if the tree was recycled
+	 * @throws IllegalStateException if the element was already released
+	 */
+	public static boolean release(final XMLElement element) {
+		checkState(element != RELEASED, "Element already released");
+		if (!isPooled(element) || !((CompactXMLElement) element).release())
+			return false;
+
+		((CompactXMLElement) element).recycle();
+		return true;
+	}
+
+	/**
+	 * Takes an element from the pool, or creates a new one if it's empty.
+	 * 
+	 * @param name the canonical tag name
+	 * @param namespace the canonical namespace, or {@code null}
+	 * @param attributes the expected number of attributes
+	 * @return an element with one reference
+	 */
+	static CompactXMLElement acquire(final String name, @Nullable final String namespace, final int attributes) {
+		final Batch batch = local.get();
+		if (batch.size == 0) {
+			final CompactXMLElement[] elements = shared.poll();
+			if (elements == null)
+				return new CompactXMLElement(name, namespace, attributes, true);
+
+			sharedBatches.decrementAndGet();
+			batch.elements = elements;
+			batch.size = elements.length;
+		}
+
+		final CompactXMLElement element = batch.elements[--batch.size];
+		batch.elements[batch.size] = null;
+		element.reuse(name, namespace, attributes);
+		return element;
+	}
+
+	/**
+	 * Returns a cleared element to the pool.
+	 * 
+	 * @param element the element
+	 */
+	static void offer(final CompactXMLElement element) {
+		final Batch batch = local.get();
+		if (batch.size == BATCH_SIZE) {
+			if (sharedBatches.get() >= MAX_SHARED_BATCHES)
+				return;
+
+			sharedBatches.incrementAndGet();
+			shared.offer(batch.elements);
+			batch.elements = new CompactXMLElement[BATCH_SIZE];
+			batch.size = 0;
+		}
+
+		batch.elements[batch.size++] = element;
+	}
+
+	private static final class Batch {
+
+		private CompactXMLElement[] elements = new CompactXMLElement[BATCH_SIZE];
+		private int size;
+
+	}
+
+	private static final class Released implements XMLElement {
+
+		private static IllegalStateException released() {
+			return new IllegalStateException("Element already released");
+		}
+
+		@Override
+		public XMLElement getXML() {
+			throw released();
+		}
+
+		@Override
+		public String getTagName() {
+			throw released();
+		}
+
+		@Override
+		public String getNamespace() {
+			throw released();
+		}
+
+		@Override
+		public XMLElement getParent() {
+			throw released();
+		}
+
+		@Override
+		public XMLElement getFirstParent() {
+			throw released();
+		}
+
+		@Override
+		public boolean hasAttribute(final String name) {
+			throw released();
+		}
+
+		@Override
+		public ImmutableMap<String, String> getAttributes() {
+			throw released();
+		}
+
+		@Override
+		public String getAttribute(final String name) {
+			throw released();
+		}
+
+		@Override
+		public void setAttribute(final String name, @Nullable final String value) {
+			throw released();
+		}
+
+		@Override
+		public boolean hasChild(final String name) {
+			throw released();
+		}
+
+		@Override
+		public boolean hasChild(final String name, final String namespace) {
+			throw released();
+		}
+
+		@Override
+		public XMLElement addChild(final String name) {
+			throw released();
+		}
+
+		@Override
+		public XMLElement addChild(final String name, @Nullable final String namespace) {
+			throw released();
+		}
+
+		@Override
+		public XMLElement addChild(final HasXML child) {
+			throw released();
+		}
+
+		@Override
+		public XMLElement getFirstChild(final String name) {
+			throw released();
+		}
+
+		@Override
+		public XMLElement getFirstChild(final String name, final String namespace) {
+			throw released();
+		}
+
+		@Override
+		public XMLElement getFirstChild(final Predicate<XMLElement> matcher) {
+			throw released();
+		}
+
+		@Override
+		public ImmutableList<XMLElement> getChildren() {
+			throw released();
+		}
+
+		@Override
+		public ImmutableList<XMLElement> getChildren(final String name) {
+			throw released();
+		}
+
+		@Override
+		public ImmutableList<XMLElement> getChildren(final String name, final String namespace) {
+			throw released();
+		}
+
+		@Override
+		public ImmutableList<XMLElement> getChildren(final Predicate<XMLElement> matcher) {
+			throw released();
+		}
+
+		@Override
+		public void removeChild(final HasXML child) {
+			throw released();
+		}
+
+		@Override
+		public String getText() {
+			throw released();
+		}
+
+		@Override
+		public String getChildText(final String name) {
+			throw released();
+		}
+
+		@Override
+		public String getChildText(final String name, final String namespace) {
+			throw released();
+		}
+
+		@Override
+		public void setText(@Nullable final String text) {
+			throw released();
+		}
+
+		@Override
+		public void setChildText(final String name, @Nullable final String text) {
+			throw released();
+		}
+
+		@Override
+		public void setChildText(final String name, @Nullable final String namespace, @Nullable final String text) {
+			throw released();
+		}
+
+		@Override
+		public String toString() {
+			throw released();
+		}
+
+	}
+
+	private XMLElementPool() {
+	}
+
+}
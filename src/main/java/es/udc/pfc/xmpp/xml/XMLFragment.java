@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A constant piece of XML, encoded once into UTF-8.
+ * 
+ * Fragments are immutable and can be shared between channels and threads.
+ */
+public final class XMLFragment {
+
+	private final String text;
+	private final byte[] bytes;
+
+	private XMLFragment(final String text) {
+		this.text = text;
+		this.bytes = text.getBytes(CharsetUtil.UTF_8);
+	}
+
+	/**
+	 * Encodes a fragment.
+	 * 
+	 * The text is written as it is, so it must already be escaped.
+	 * 
+	 * @param text the XML text of the fragment
+	 * @return the encoded fragment
+	 */
+	public static XMLFragment of(final String text) {
+		return new XMLFragment(checkNotNull(text));
+	}
+
+	/**
+	 * Returns the number of encoded bytes.
+	 * 
+	 * @return the length of this fragment, in bytes
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * Returns a read-only buffer wrapping this fragment, without copying it.
+	 * 
+	 * @return a new buffer with the bytes of this fragment
+	 */
+	public ChannelBuffer buffer() {
+		return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(bytes));
+	}
+
+	/**
+	 * Copies this fragment at the end of a buffer.
+	 * 
+	 * @param buffer the buffer to write to
+	 */
+	public void writeTo(final ChannelBuffer buffer) {
+		buffer.writeBytes(bytes);
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+}
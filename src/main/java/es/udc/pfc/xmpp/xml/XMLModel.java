@@ -0,0 +1,101 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+/**
+ * Available implementations of {@link XMLElement}.
+ * 
+ * The default model is used by {@link XMLBuilder} and by the stream
+ * decoders, unless another one is explicitly requested.
+ */
+public enum XMLModel {
+
+	/**
+	 * Elements backed by a DOM tree.
+	 * 
+	 * @see XMLElementImpl
+	 */
+	DOM {
+		@Override
+		public XMLElement newElement(final String name, @Nullable final String namespace) {
+			return new XMLElementImpl(name, namespace);
+		}
+
+		@Override
+		XMLStreamBuilder newStreamBuilder() {
+			return new XMLStreamBuilder.DOM();
+		}
+	},
+
+	/**
+	 * Elements backed by compact arrays.
+	 * 
+	 * @see CompactXMLElement
+	 */
+	COMPACT {
+		@Override
+		public XMLElement newElement(final String name, @Nullable final String namespace) {
+			return new CompactXMLElement(name, namespace);
+		}
+
+		@Override
+		XMLStreamBuilder newStreamBuilder() {
+			return new XMLStreamBuilder.Compact();
+		}
+	};
+
+	private static volatile XMLModel defaultModel = COMPACT;
+
+	/**
+	 * Returns the model used when none is requested.
+	 * 
+	 * @return the default model
+	 */
+	public static XMLModel getDefault() {
+		return defaultModel;
+	}
+
+	/**
+	 * Changes the model used when none is requested.
+	 * 
+	 * @param model the new default model
+	 */
+	public static void setDefault(final XMLModel model) {
+		defaultModel = checkNotNull(model);
+	}
+
+	/**
+	 * Creates a new element with a given tag name and namespace.
+	 * 
+	 * @param name the tag name for the new element
+	 * @param namespace the namespace for the new element
+	 * @return the new element
+	 */
+	public abstract XMLElement newElement(String name, @Nullable String namespace);
+
+	/**
+	 * Creates a builder which produces elements of this model.
+	 * 
+	 * @return a new builder
+	 */
+	abstract XMLStreamBuilder newStreamBuilder();
+
+}
@@ -0,0 +1,455 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+/**
+ * Serializes XML elements into UTF-8 bytes.
+ * 
+ * Elements are written by walking the tree, encoding and escaping each
+ * name and text directly into the buffer, without building an intermediate
+ * String.
+ * 
+ * Namespaces in scope are tracked while writing, so only the declarations
+ * which change them are written. A default namespace can be given as
+ * already in scope, such as the one of the stream the element is sent to,
+ * so it's not declared again on each stanza.
+ * 
+ * The tags and attributes of {@link #registerNames(String...) registered names}
+ * are encoded once, and then copied as a whole.
+ */
+public final class XMLSerializer {
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private static final byte[] XMLNS = " xmlns=\"".getBytes(CharsetUtil.UTF_8);
+	private static final byte[] XMLNS_PREFIX = " xmlns:".getBytes(CharsetUtil.UTF_8);
+
+	/** Replacements for the ASCII characters which must be escaped, or {@code null} if none. */
+	private static final byte[][] NO_ESCAPES = new byte[0x80][];
+	private static final byte[][] TEXT_ESCAPES = new byte[0x80][];
+	private static final byte[][] ATTRIBUTE_ESCAPES = new byte[0x80][];
+
+	static {
+		for (final byte[][] escapes : new byte[][][] { TEXT_ESCAPES, ATTRIBUTE_ESCAPES }) {
+			escapes['&'] = "&amp;".getBytes(CharsetUtil.UTF_8);
+			escapes['<'] = "&lt;".getBytes(CharsetUtil.UTF_8);
+			escapes['>'] = "&gt;".getBytes(CharsetUtil.UTF_8);
+			escapes['\r'] = "&#13;".getBytes(CharsetUtil.UTF_8);
+		}
+		ATTRIBUTE_ESCAPES['"'] = "&quot;".getBytes(CharsetUtil.UTF_8);
+		ATTRIBUTE_ESCAPES['\n'] = "&#10;".getBytes(CharsetUtil.UTF_8);
+		ATTRIBUTE_ESCAPES['\t'] = "&#9;".getBytes(CharsetUtil.UTF_8);
+	}
+
+	private static final ConcurrentMap<String, EncodedName> names = new ConcurrentHashMap<String, EncodedName>();
+
+	/**
+	 * Pre-encodes element or attribute names which are written often.
+	 * 
+	 * @param names the names to register
+	 */
+	public static void registerNames(final String... names) {
+		for (final String name : names) {
+			XMLSerializer.names.putIfAbsent(name, new EncodedName(checkNotNull(name)));
+		}
+	}
+
+	/**
+	 * Serializes an element into a new dynamic buffer.
+	 * 
+	 * @param element the element to serialize
+	 * @return a buffer with the serialized element
+	 */
+	public static ChannelBuffer serialize(final XMLElement element) {
+		return serialize(element, null);
+	}
+
+	/**
+	 * Serializes an element into a new dynamic buffer, inside a default namespace.
+	 * 
+	 * @param element the element to serialize
+	 * @param inheritedNamespace the default namespace already in scope, or {@code null}
+	 * @return a buffer with the serialized element
+	 */
+	public static ChannelBuffer serialize(final XMLElement element, @Nullable final String inheritedNamespace) {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(INITIAL_CAPACITY);
+		write(element, buffer, inheritedNamespace);
+		return buffer;
+	}
+
+	/**
+	 * Serializes an element into a new dynamic buffer, leaving out one of its attributes.
+	 * 
+	 * The element itself is not modified, so it keeps its attributes in the
+	 * same order and its raw bytes, and other threads can read it meanwhile.
+	 * Lazy elements which are not built yet are built for this write only.
+	 * 
+	 * @param element the element to serialize
+	 * @param skippedAttribute the name of the attribute of the element to leave out
+	 * @param inheritedNamespace the default namespace already in scope, or {@code null}
+	 * @return a buffer with the serialized element
+	 */
+	public static ChannelBuffer serializeWithout(final XMLElement element, final String skippedAttribute, @Nullable final String inheritedNamespace) {
+		checkNotNull(skippedAttribute);
+
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(INITIAL_CAPACITY);
+		write(element, buffer, inheritedNamespace, skippedAttribute);
+		return buffer;
+	}
+
+	/**
+	 * Serializes an element at the end of a buffer.
+	 * 
+	 * @param element the element to serialize
+	 * @param buffer the buffer to write to, which must be able to grow as needed
+	 */
+	public static void write(final XMLElement element, final ChannelBuffer buffer) {
+		write(element, buffer, null);
+	}
+
+	/**
+	 * Serializes an element at the end of a buffer, inside a default namespace.
+	 * 
+	 * The namespace of the element is only declared if it's not the
+	 * inherited one.
+	 * 
+	 * @param element the element to serialize
+	 * @param buffer the buffer to write to, which must be able to grow as needed
+	 * @param inheritedNamespace the default namespace already in scope, or {@code null}
+	 */
+	public static void write(final XMLElement element, final ChannelBuffer buffer, @Nullable final String inheritedNamespace) {
+		write(element, buffer, inheritedNamespace, null);
+	}
+
+	private static void write(final XMLElement element, final ChannelBuffer buffer, @Nullable final String inheritedNamespace, @Nullable final String skippedAttribute) {
+		checkNotNull(element);
+		checkNotNull(buffer);
+
+		if (element instanceof LazyXMLElement) {
+			final LazyXMLElement lazy = (LazyXMLElement) element;
+			write(skippedAttribute != null ? lazy.snapshot() : lazy.materialize(), buffer, inheritedNamespace, skippedAttribute);
+		} else if (element instanceof CompactXMLElement) {
+			((CompactXMLElement) element).write(buffer, inheritedNamespace, skippedAttribute);
+		} else if (element instanceof XMLElementImpl) {
+			((XMLElementImpl) element).write(buffer, inheritedNamespace, skippedAttribute);
+		} else if (skippedAttribute != null) {
+			// Other implementations can only be written as a whole, so a copy is written instead
+			write(XMLStreamBuilder.create(XMLModel.COMPACT).parse(element.toString()), buffer, inheritedNamespace, skippedAttribute);
+		} else {
+			buffer.writeBytes(element.toString().getBytes(CharsetUtil.UTF_8));
+		}
+	}
+
+	/**
+	 * Writes a DOM element, declaring only the namespaces not yet in scope.
+	 * 
+	 * Declarations already in scope with the same value are left out. The
+	 * namespaces of the element and its attributes are declared if needed,
+	 * even if the DOM tree has no declaration for them.
+	 * 
+	 * @param element the element to write
+	 * @param buffer the buffer to write to
+	 * @param inheritedNamespace the default namespace in scope, or {@code null}
+	 */
+	static void write(final Element element, final ChannelBuffer buffer, @Nullable final String inheritedNamespace) {
+		write(element, buffer, inheritedNamespace, null);
+	}
+
+	/**
+	 * Writes a DOM element, leaving out one of its attributes.
+	 * 
+	 * @param element the element to write
+	 * @param buffer the buffer to write to
+	 * @param inheritedNamespace the default namespace in scope, or {@code null}
+	 * @param skippedAttribute the name of an attribute of the element to leave out, or {@code null}
+	 * @see #write(Element, ChannelBuffer, String)
+	 */
+	static void write(final Element element, final ChannelBuffer buffer, @Nullable final String inheritedNamespace, @Nullable final String skippedAttribute) {
+		// Prefixes and namespaces in scope, in pairs, the default one with an empty prefix
+		final List<String> scope = Lists.newArrayList("", Strings.nullToEmpty(inheritedNamespace));
+		writeElement(element, buffer, scope, skippedAttribute);
+	}
+
+	private static void writeElement(final Element element, final ChannelBuffer buffer, final List<String> scope, @Nullable final String skippedAttribute) {
+		final int mark = scope.size();
+		final String name = element.getTagName();
+		writeStartTag(buffer, name);
+
+		// Elements created without namespace support only have the declarations in their attributes
+		if (element.getLocalName() != null) {
+			declare(buffer, scope, mark, Strings.nullToEmpty(element.getPrefix()), Strings.nullToEmpty(element.getNamespaceURI()));
+		}
+
+		final NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			final Attr attribute = (Attr) attributes.item(i);
+			final String attributeName = attribute.getName();
+			if (XMLConstants.XMLNS_ATTRIBUTE.equals(attributeName)) {
+				declare(buffer, scope, mark, "", attribute.getValue());
+			} else if (attributeName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ':')) {
+				declare(buffer, scope, mark, attributeName.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1), attribute.getValue());
+			} else if (!attributeName.equals(skippedAttribute)) {
+				// Unprefixed attributes have no namespace, and xml is always bound
+				final String prefix = attribute.getPrefix();
+				if (prefix != null && attribute.getNamespaceURI() != null && !XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+					declare(buffer, scope, mark, prefix, attribute.getNamespaceURI());
+				}
+				writeAttributeName(buffer, attributeName);
+				writeEscaped(buffer, attribute.getValue(), true);
+				buffer.writeByte('"');
+			}
+		}
+
+		Node child = element.getFirstChild();
+		if (child == null) {
+			buffer.writeByte('/');
+			buffer.writeByte('>');
+		} else {
+			buffer.writeByte('>');
+			for (; child != null; child = child.getNextSibling()) {
+				switch (child.getNodeType()) {
+				case Node.ELEMENT_NODE:
+					writeElement((Element) child, buffer, scope, null);
+					break;
+				case Node.TEXT_NODE:
+				case Node.CDATA_SECTION_NODE:
+					writeEscaped(buffer, child.getNodeValue(), false);
+					break;
+				default:
+					// Comments and processing instructions are not sent
+					break;
+				}
+			}
+			writeEndTag(buffer, name);
+		}
+
+		scope.subList(mark, scope.size()).clear();
+	}
+
+	/**
+	 * Declares a namespace prefix, unless it's already bound to the same namespace.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param scope the prefixes and namespaces in scope
+	 * @param mark the position in the scope where the declarations of this element start
+	 * @param prefix the prefix, or an empty String for the default namespace
+	 * @param namespace the namespace, or an empty String for none
+	 */
+	static void declare(final ChannelBuffer buffer, final List<String> scope, final int mark, final String prefix, final String namespace) {
+		for (int i = scope.size() - 2; i >= 0; i -= 2) {
+			if (scope.get(i).equals(prefix)) {
+				// The first declaration of a prefix in an element wins
+				if (i >= mark || scope.get(i + 1).equals(namespace))
+					return;
+				break;
+			}
+		}
+		if (!prefix.isEmpty() && namespace.isEmpty())
+			return;
+
+		if (prefix.isEmpty()) {
+			buffer.writeBytes(XMLNS);
+		} else {
+			buffer.writeBytes(XMLNS_PREFIX);
+			writeRaw(buffer, prefix);
+			buffer.writeByte('=');
+			buffer.writeByte('"');
+		}
+		writeEscaped(buffer, namespace, true);
+		buffer.writeByte('"');
+
+		scope.add(prefix);
+		scope.add(namespace);
+	}
+
+	/**
+	 * Writes the beginning of a start tag, up to the name.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param name the tag name
+	 */
+	static void writeStartTag(final ChannelBuffer buffer, final String name) {
+		final EncodedName encoded = names.get(name);
+		if (encoded != null) {
+			buffer.writeBytes(encoded.startTag);
+		} else {
+			buffer.writeByte('<');
+			writeRaw(buffer, name);
+		}
+	}
+
+	/**
+	 * Writes an end tag.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param name the tag name
+	 */
+	static void writeEndTag(final ChannelBuffer buffer, final String name) {
+		final EncodedName encoded = names.get(name);
+		if (encoded != null) {
+			buffer.writeBytes(encoded.endTag);
+		} else {
+			buffer.writeByte('<');
+			buffer.writeByte('/');
+			writeRaw(buffer, name);
+			buffer.writeByte('>');
+		}
+	}
+
+	/**
+	 * Writes the beginning of an attribute, up to the opening quote.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param name the attribute name
+	 */
+	static void writeAttributeName(final ChannelBuffer buffer, final String name) {
+		final EncodedName encoded = names.get(name);
+		if (encoded != null) {
+			buffer.writeBytes(encoded.attribute);
+		} else {
+			buffer.writeByte(' ');
+			writeRaw(buffer, name);
+			buffer.writeByte('=');
+			buffer.writeByte('"');
+		}
+	}
+
+	/**
+	 * Writes a name or any other text which needs no escaping.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param text the text to write
+	 */
+	static void writeRaw(final ChannelBuffer buffer, final String text) {
+		write(buffer, text, NO_ESCAPES);
+	}
+
+	/**
+	 * Writes escaped text.
+	 * 
+	 * @param buffer the buffer to write to
+	 * @param text the text to write
+	 * @param attribute {@code true} if the text is an attribute value
+	 */
+	static void writeEscaped(final ChannelBuffer buffer, final String text, final boolean attribute) {
+		write(buffer, text, attribute ? ATTRIBUTE_ESCAPES : TEXT_ESCAPES);
+	}
+
+	private static void write(final ChannelBuffer buffer, final String text, final byte[][] escapes) {
+		final int length = text.length();
+		buffer.ensureWritableBytes(length);
+
+		int i = 0;
+		while (i < length) {
+			// Copy the longest run of ASCII characters which need no escaping at once
+			int end = i;
+			while (end < length) {
+				final char c = text.charAt(end);
+				if (c >= 0x80 || escapes[c] != null) {
+					break;
+				}
+				end++;
+			}
+			if (end > i) {
+				writeAscii(buffer, text, i, end);
+				i = end;
+				if (i == length) {
+					break;
+				}
+			}
+
+			final char c = text.charAt(i++);
+			if (c < 0x80) {
+				buffer.writeBytes(escapes[c]);
+			} else if (c < 0x800) {
+				buffer.writeByte(0xC0 | c >> 6);
+				buffer.writeByte(0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(text.charAt(i))) {
+				final int codePoint = Character.toCodePoint(c, text.charAt(i++));
+				buffer.writeByte(0xF0 | codePoint >> 18);
+				buffer.writeByte(0x80 | codePoint >> 12 & 0x3F);
+				buffer.writeByte(0x80 | codePoint >> 6 & 0x3F);
+				buffer.writeByte(0x80 | codePoint & 0x3F);
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// Unpaired surrogates are replaced, as String.getBytes() does
+				buffer.writeByte('?');
+			} else {
+				buffer.writeByte(0xE0 | c >> 12);
+				buffer.writeByte(0x80 | c >> 6 & 0x3F);
+				buffer.writeByte(0x80 | c & 0x3F);
+			}
+		}
+	}
+
+	private static void writeAscii(final ChannelBuffer buffer, final String text, final int start, final int end) {
+		final int count = end - start;
+		buffer.ensureWritableBytes(count);
+
+		if (!buffer.hasArray()) {
+			for (int i = start; i < end; i++) {
+				buffer.writeByte(text.charAt(i));
+			}
+			return;
+		}
+
+		// Write straight into the backing array, skipping the per-byte checks
+		final byte[] array = buffer.array();
+		int offset = buffer.arrayOffset() + buffer.writerIndex();
+		for (int i = start; i < end; i++) {
+			array[offset++] = (byte) text.charAt(i);
+		}
+		buffer.writerIndex(buffer.writerIndex() + count);
+	}
+
+	private static final class EncodedName {
+
+		private final byte[] startTag;
+		private final byte[] endTag;
+		private final byte[] attribute;
+
+		private EncodedName(final String name) {
+			startTag = ("<" + name).getBytes(CharsetUtil.UTF_8);
+			endTag = ("</" + name + ">").getBytes(CharsetUtil.UTF_8);
+			attribute = (" " + name + "=\"").getBytes(CharsetUtil.UTF_8);
+		}
+
+	}
+
+	private XMLSerializer() {
+	}
+
+}
@@ -0,0 +1,391 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.codehaus.stax2.XMLInputFactory2;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+import com.google.common.base.Strings;
+
+/**
+ * Builds XML elements from the cursor state of a StAX reader.
+ * 
+ * Elements are built directly from the reader, without creating intermediate
+ * event objects. Feed it the events of one element and all its descendants,
+ * and the complete element will be returned when it is closed.
+ */
+public abstract class XMLStreamBuilder {
+
+	private static final XMLInputFactory factory;
+
+	static {
+		factory = new InputFactoryImpl();
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory2.P_INTERN_NAMES, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory2.P_INTERN_NS_URIS, Boolean.TRUE);
+	}
+
+	/**
+	 * Creates a new builder for the default model.
+	 * 
+	 * @return a new builder
+	 */
+	public static XMLStreamBuilder create() {
+		return create(XMLModel.getDefault());
+	}
+
+	/**
+	 * Creates a new builder for the given model.
+	 * 
+	 * @param model the model of the elements to build
+	 * @return a new builder
+	 */
+	public static XMLStreamBuilder create(final XMLModel model) {
+		return model.newStreamBuilder();
+	}
+
+	/**
+	 * Creates a new builder for compact elements taken from the {@link XMLElementPool}.
+	 * 
+	 * @return a new builder
+	 */
+	public static XMLStreamBuilder createPooled() {
+		return new Compact(true);
+	}
+
+	/**
+	 * Text pending to be added to the open element.
+	 */
+	protected final StringBuilder text;
+
+	XMLStreamBuilder() {
+		text = new StringBuilder();
+	}
+
+	/**
+	 * Checks if an element is being built.
+	 * 
+	 * @return {@code true} if there is an unfinished element, {@code false} otherwise
+	 */
+	public abstract boolean isBuilding();
+
+	/**
+	 * Opens a new element from the reader's current START_ELEMENT.
+	 * 
+	 * @param reader the reader positioned at a START_ELEMENT
+	 */
+	public abstract void startElement(XMLStreamReader reader);
+
+	/**
+	 * Appends the reader's current text to the open element.
+	 * 
+	 * @param reader the reader positioned at a CHARACTERS, CDATA or SPACE event
+	 */
+	public void characters(final XMLStreamReader reader) {
+		checkState(isBuilding(), "No element to append text to");
+
+		text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+	}
+
+	/**
+	 * Marks the open element as streamed.
+	 * 
+	 * The text of a streamed element is handled outside the builder, so it's
+	 * not fed to it. Only compact elements can be streamed.
+	 * 
+	 * @return the open element
+	 * @see CompactXMLElement#isStreamed()
+	 */
+	public XMLElement markStreamed() {
+		throw new UnsupportedOperationException("Streamed elements are not supported");
+	}
+
+	/**
+	 * Closes the open element.
+	 * 
+	 * @return the complete element if the outermost element was closed, {@code null} otherwise
+	 */
+	@Nullable
+	public abstract XMLElement endElement();
+
+	/**
+	 * Parses a string into a new element.
+	 * 
+	 * @param xml the string to parse
+	 * @return the parsed element
+	 */
+	public final XMLElement parse(final String xml) {
+		try {
+			return parse(factory.createXMLStreamReader(new StringReader(xml)), false);
+		} catch (final XMLStreamException e) {
+			throw new IllegalArgumentException("Invalid XML", e);
+		}
+	}
+
+	/**
+	 * Parses the UTF-8 bytes of an element which appeared inside a given context.
+	 * 
+	 * The context is a single start tag which declares the namespaces in scope
+	 * for the element, such as those of the stream it was received on. An empty
+	 * context means there are no namespaces in scope.
+	 * 
+	 * @param context the UTF-8 bytes of the enclosing start tag, or an empty array
+	 * @param source the UTF-8 bytes of the element
+	 * @return the parsed element
+	 */
+	public final XMLElement parse(final byte[] context, final byte[] source) {
+		try {
+			final InputStream input = new SequenceInputStream(new ByteArrayInputStream(context), new ByteArrayInputStream(source));
+			return parse(factory.createXMLStreamReader(input, "UTF-8"), context.length > 0);
+		} catch (final XMLStreamException e) {
+			throw new IllegalArgumentException("Invalid XML", e);
+		}
+	}
+
+	private XMLElement parse(final XMLStreamReader reader, final boolean skipContext) throws XMLStreamException {
+		try {
+			if (skipContext) {
+				reader.nextTag();
+				reader.next();
+			}
+			return build(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Builds the next element from a reader.
+	 * 
+	 * The reader is left positioned at the END_ELEMENT of the built element.
+	 * 
+	 * @param reader the reader to build the element from
+	 * @return the built element
+	 * @throws XMLStreamException if the element can't be read
+	 */
+	public final XMLElement build(final XMLStreamReader reader) throws XMLStreamException {
+		checkState(!isBuilding(), "Already building an element");
+
+		while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+			reader.next();
+		}
+
+		while (true) {
+			switch (reader.getEventType()) {
+			case XMLStreamConstants.START_ELEMENT:
+				startElement(reader);
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				final XMLElement element = endElement();
+				if (element != null)
+					return element;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				characters(reader);
+				break;
+			}
+			reader.next();
+		}
+	}
+
+	private static String qualifiedName(@Nullable final String prefix, @Nullable final String localName) {
+		if (Strings.isNullOrEmpty(prefix))
+			return localName;
+		if (Strings.isNullOrEmpty(localName))
+			return prefix;
+
+		return prefix + ':' + localName;
+	}
+
+	/**
+	 * Builds DOM backed elements.
+	 */
+	static final class DOM extends XMLStreamBuilder {
+
+		private Document document;
+		@Nullable
+		private Element current;
+
+		@Override
+		public boolean isBuilding() {
+			return current != null;
+		}
+
+		@Override
+		public void startElement(final XMLStreamReader reader) {
+			final Element element;
+			if (current == null) {
+				document = XMLUtil.newDocument();
+				element = document.createElementNS(Strings.emptyToNull(reader.getNamespaceURI()), qualifiedName(reader.getPrefix(), reader.getLocalName()));
+				document.appendChild(element);
+			} else {
+				flushText();
+				element = document.createElementNS(Strings.emptyToNull(reader.getNamespaceURI()), qualifiedName(reader.getPrefix(), reader.getLocalName()));
+				current.appendChild(element);
+			}
+
+			for (int i = 0; i < reader.getNamespaceCount(); i++) {
+				final String prefix = reader.getNamespacePrefix(i);
+				element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, qualifiedName(XMLConstants.XMLNS_ATTRIBUTE, prefix), reader.getNamespaceURI(i));
+			}
+
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				element.setAttributeNS(Strings.emptyToNull(reader.getAttributeNamespace(i)), qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+			}
+
+			current = element;
+		}
+
+		@Override
+		@Nullable
+		public XMLElement endElement() {
+			checkState(current != null, "No element to close");
+
+			flushText();
+
+			final Node parent = current.getParentNode();
+			if (parent instanceof Element) {
+				current = (Element) parent;
+				return null;
+			}
+
+			current = null;
+			return XMLElementImpl.fromElement(document.getDocumentElement());
+		}
+
+		private void flushText() {
+			if (text.length() > 0) {
+				current.appendChild(document.createTextNode(text.toString()));
+				text.setLength(0);
+			}
+		}
+
+	}
+
+	/**
+	 * Builds compact elements.
+	 * 
+	 * The reader is expected to intern names and namespaces, as Aalto does, so
+	 * they are already the canonical instances kept by {@link XMLSymbols}.
+	 * Qualified names are canonicalized explicitly, and so are values of
+	 * <i>type</i> attributes which are known symbols.
+	 */
+	static final class Compact extends XMLStreamBuilder {
+
+		private static final String TYPE = "type";
+
+		private final boolean pooled;
+
+		@Nullable
+		private CompactXMLElement current;
+
+		Compact() {
+			this(false);
+		}
+
+		Compact(final boolean pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public boolean isBuilding() {
+			return current != null;
+		}
+
+		@Override
+		public void startElement(final XMLStreamReader reader) {
+			final String prefix = reader.getPrefix();
+			final String name = Strings.isNullOrEmpty(prefix) ? reader.getLocalName() : XMLSymbols.intern(qualifiedName(prefix, reader.getLocalName()));
+			final String namespace = Strings.emptyToNull(reader.getNamespaceURI());
+			final int namespaceCount = reader.getNamespaceCount();
+			final int attributeCount = reader.getAttributeCount();
+
+			final CompactXMLElement element = pooled ? XMLElementPool.acquire(name, namespace, namespaceCount + attributeCount) : new CompactXMLElement(name, namespace, namespaceCount + attributeCount);
+
+			// The default namespace is kept by the element itself, unless it's undeclared
+			for (int i = 0; i < namespaceCount; i++) {
+				final String namespacePrefix = reader.getNamespacePrefix(i);
+				if (!Strings.isNullOrEmpty(namespacePrefix)) {
+					element.appendAttribute(XMLSymbols.intern(qualifiedName(XMLConstants.XMLNS_ATTRIBUTE, namespacePrefix)), reader.getNamespaceURI(i));
+				} else if (Strings.isNullOrEmpty(reader.getNamespaceURI(i))) {
+					element.appendAttribute(XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.NULL_NS_URI);
+				}
+			}
+
+			for (int i = 0; i < attributeCount; i++) {
+				final String attributePrefix = reader.getAttributePrefix(i);
+				final String attributeName = Strings.isNullOrEmpty(attributePrefix) ? reader.getAttributeLocalName(i) : XMLSymbols.intern(qualifiedName(attributePrefix, reader.getAttributeLocalName(i)));
+				final String attributeValue = reader.getAttributeValue(i);
+				element.appendAttribute(attributeName, attributeName == TYPE ? XMLSymbols.lookup(attributeValue) : attributeValue);
+			}
+
+			if (current != null) {
+				flushText();
+				current.appendChild(element);
+			}
+			current = element;
+		}
+
+		@Override
+		public XMLElement markStreamed() {
+			checkState(current != null, "No element to mark");
+
+			current.setStreamed(true);
+			return current;
+		}
+
+		@Override
+		@Nullable
+		public XMLElement endElement() {
+			checkState(current != null, "No element to close");
+
+			flushText();
+
+			final CompactXMLElement element = current;
+			current = (CompactXMLElement) element.getParent();
+			return current == null ? element : null;
+		}
+
+		private void flushText() {
+			if (text.length() > 0) {
+				current.appendText(text.toString());
+				text.setLength(0);
+			}
+		}
+
+	}
+
+}
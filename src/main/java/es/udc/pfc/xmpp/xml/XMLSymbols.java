@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+
+/**
+ * Process-wide table of element names, attribute names and namespaces.
+ * 
+ * Every symbol is stored as its {@link String#intern() interned} instance,
+ * which is also the instance returned by the parser, so equal names share
+ * the same object and comparisons succeed on identity. The table only keeps
+ * a bounded number of symbols; past that point names are still interned,
+ * but not cached.
+ */
+public final class XMLSymbols {
+
+	private static final int MAX_SYMBOLS = 8192;
+
+	private static final ConcurrentMap<String, String> symbols = new ConcurrentHashMap<String, String>(512);
+
+	static {
+		register(XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.XML_NS_URI, XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xml:lang");
+	}
+
+	/**
+	 * Returns the canonical instance of a symbol, adding it to the table if
+	 * it's not already there.
+	 * 
+	 * @param symbol the symbol
+	 * @return the canonical instance for the symbol
+	 */
+	public static String intern(final String symbol) {
+		final String canonical = symbols.get(checkNotNull(symbol));
+		if (canonical != null)
+			return canonical;
+
+		final String interned = symbol.intern();
+		if (symbols.size() < MAX_SYMBOLS) {
+			symbols.putIfAbsent(interned, interned);
+		}
+		return interned;
+	}
+
+	/**
+	 * Returns the canonical instance of a value if it's already in the table.
+	 * 
+	 * Unlike {@link #intern(String)}, unknown values are never added, so it
+	 * can be used on untrusted input such as attribute values.
+	 * 
+	 * @param value the value
+	 * @return the canonical instance, or the same value if it's not a symbol
+	 */
+	public static String lookup(final String value) {
+		final String canonical = symbols.get(checkNotNull(value));
+		return canonical != null ? canonical : value;
+	}
+
+	/**
+	 * Adds some symbols to the table.
+	 * 
+	 * @param symbols the symbols to add
+	 */
+	public static void register(final String... symbols) {
+		for (final String symbol : symbols) {
+			intern(symbol);
+		}
+	}
+
+	/**
+	 * Adds the values of all public static String constants in a class to the
+	 * table.
+	 * 
+	 * @param constants the class which defines the constants
+	 */
+	public static void register(final Class<?> constants) {
+		for (final Field field : constants.getFields()) {
+			final int modifiers = field.getModifiers();
+			if (Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers) && field.getType() == String.class) {
+				try {
+					final String value = (String) field.get(null);
+					if (value != null) {
+						intern(value);
+					}
+				} catch (final IllegalAccessException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the names of the constants of an enum to the table.
+	 * 
+	 * @param values the enum constants
+	 */
+	public static void register(final Enum<?>... values) {
+		for (final Enum<?> value : values) {
+			intern(value.name());
+		}
+	}
+
+	private XMLSymbols() {
+	}
+
+}
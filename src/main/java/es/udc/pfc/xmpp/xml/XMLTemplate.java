@@ -0,0 +1,193 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import es.udc.pfc.xmpp.stanza.XMPPNamespaces;
+
+/**
+ * An element compiled into pre-encoded bytes, with holes for some of its
+ * attribute values and text.
+ * 
+ * Holes are written as <code>${name}</code> in the skeleton element, either
+ * as a whole attribute value or text, or as part of one. Applying the
+ * template copies the encoded bytes and escapes each value as an attribute
+ * or as text, depending on where its hole is. A hole can appear more than
+ * once, and takes the same value everywhere.
+ * 
+ * Templates are immutable, and can be shared between threads.
+ */
+public final class XMLTemplate {
+
+	private static final String HOLE_START = "${";
+	private static final char HOLE_END = '}';
+
+	private final String text;
+	private final ImmutableList<String> holeNames;
+
+	/** Encoded segments, with one more than holes. */
+	private final byte[][] segments;
+
+	/** Index into holeNames of each hole, in order. */
+	private final int[] holes;
+
+	/** Whether each hole is inside an attribute value. */
+	private final boolean[] attributes;
+
+	private final int segmentsLength;
+
+	private XMLTemplate(final String text, final ImmutableList<String> holeNames, final byte[][] segments, final int[] holes, final boolean[] attributes) {
+		this.text = text;
+		this.holeNames = holeNames;
+		this.segments = segments;
+		this.holes = holes;
+		this.attributes = attributes;
+
+		int length = 0;
+		for (final byte[] segment : segments) {
+			length += segment.length;
+		}
+		segmentsLength = length;
+	}
+
+	/**
+	 * Compiles a template from a skeleton element, to be sent in a component stream.
+	 * 
+	 * The skeleton is serialized inside the <i>jabber:component:accept</i>
+	 * namespace, so it's not declared again on each stanza.
+	 * 
+	 * @param skeleton the element, with <code>${name}</code> in place of variable values
+	 * @return the compiled template
+	 */
+	public static XMLTemplate compile(final XMLElement skeleton) {
+		return compile(skeleton, XMPPNamespaces.ACCEPT);
+	}
+
+	/**
+	 * Compiles a template from a skeleton element, inside a default namespace.
+	 * 
+	 * @param skeleton the element, with <code>${name}</code> in place of variable values
+	 * @param inheritedNamespace the default namespace already in scope where the template is written, or {@code null}
+	 * @return the compiled template
+	 */
+	public static XMLTemplate compile(final XMLElement skeleton, @Nullable final String inheritedNamespace) {
+		final String text = XMLSerializer.serialize(checkNotNull(skeleton), inheritedNamespace).toString(CharsetUtil.UTF_8);
+
+		final List<String> names = Lists.newArrayList();
+		final List<byte[]> segments = Lists.newArrayList();
+		final List<Integer> holes = Lists.newArrayList();
+		final List<Boolean> attributes = Lists.newArrayList();
+
+		// Serialized text and attribute values never contain '<' or '>', so these only delimit tags
+		boolean insideTag = false;
+		int segmentStart = 0;
+		int i = 0;
+		while (i < text.length()) {
+			final char c = text.charAt(i);
+			if (c == '<') {
+				insideTag = true;
+			} else if (c == '>') {
+				insideTag = false;
+			} else if (text.startsWith(HOLE_START, i)) {
+				final int end = text.indexOf(HOLE_END, i + HOLE_START.length());
+				checkArgument(end > i + HOLE_START.length(), "Unterminated or empty hole at %s", i);
+
+				final String name = text.substring(i + HOLE_START.length(), end);
+				if (!names.contains(name)) {
+					names.add(name);
+				}
+
+				segments.add(text.substring(segmentStart, i).getBytes(CharsetUtil.UTF_8));
+				holes.add(names.indexOf(name));
+				attributes.add(insideTag);
+
+				i = segmentStart = end + 1;
+				continue;
+			}
+			i++;
+		}
+		segments.add(text.substring(segmentStart).getBytes(CharsetUtil.UTF_8));
+
+		final int[] holeArray = new int[holes.size()];
+		final boolean[] attributeArray = new boolean[holes.size()];
+		for (int j = 0; j < holeArray.length; j++) {
+			holeArray[j] = holes.get(j);
+			attributeArray[j] = attributes.get(j);
+		}
+
+		return new XMLTemplate(text, ImmutableList.copyOf(names), segments.toArray(new byte[segments.size()][]), holeArray, attributeArray);
+	}
+
+	/**
+	 * Returns the names of the holes in this template.
+	 * 
+	 * @return the names of the holes
+	 */
+	public ImmutableList<String> getHoleNames() {
+		return holeNames;
+	}
+
+	/**
+	 * Writes the template with the given values into a new buffer.
+	 * 
+	 * @param values the value of each hole, by name
+	 * @return a new buffer with the serialized element
+	 * @throws IllegalArgumentException if a hole has no value
+	 */
+	public ChannelBuffer apply(final Map<String, String> values) {
+		checkNotNull(values);
+
+		final String[] ordered = new String[holeNames.size()];
+		for (int i = 0; i < ordered.length; i++) {
+			ordered[i] = values.get(holeNames.get(i));
+			checkArgument(ordered[i] != null, "No value for %s", holeNames.get(i));
+		}
+
+		int length = segmentsLength;
+		for (final int hole : holes) {
+			length += ordered[hole].length();
+		}
+
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(length);
+		buffer.writeBytes(segments[0]);
+		for (int i = 0; i < holes.length; i++) {
+			XMLSerializer.writeEscaped(buffer, ordered[holes[i]], attributes[i]);
+			buffer.writeBytes(segments[i + 1]);
+		}
+		return buffer;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+}
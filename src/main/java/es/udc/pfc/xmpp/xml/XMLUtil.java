@@ -37,27 +37,55 @@ import org.w3c.dom.Element;
 
 /**
  * XML DOM utilities.
+ * 
+ * {@link #toString(Element)} uses a Transformer rather than
+ * {@link XMLSerializer}, so it can be used as a reference for it.
+ * 
+ * Document builders and transformers are not thread-safe, so each thread
+ * uses its own instances, which are created the first time they're needed.
  */
 public final class XMLUtil {
 
-	private static final DocumentBuilder docBuilder;
-	private static final Transformer transformer;
+	private static final DocumentBuilderFactory docBuilderFactory;
+	private static final TransformerFactory transformerFactory;
 
-	static {
-		try {
-			final DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-			docBuilderFactory.setIgnoringElementContentWhitespace(true);
-			docBuilderFactory.setIgnoringComments(true);
+	private static final ThreadLocal<DocumentBuilder> docBuilder = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			// Factories are not thread-safe either
+			synchronized (docBuilderFactory) {
+				try {
+					return docBuilderFactory.newDocumentBuilder();
+				} catch (final ParserConfigurationException e) {
+					throw new InternalError("Error creating Document Builder");
+				}
+			}
+		}
+	};
 
-			docBuilder = docBuilderFactory.newDocumentBuilder();
-			transformer = TransformerFactory.newInstance().newTransformer();
-			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-			transformer.setOutputProperty(OutputKeys.INDENT, "no");
-		} catch (final ParserConfigurationException e) {
-			throw new InternalError("Error creating Document Builder");
-		} catch (final TransformerConfigurationException e) {
-			throw new InternalError("Error creating Transformer");
+	private static final ThreadLocal<Transformer> transformer = new ThreadLocal<Transformer>() {
+		@Override
+		protected Transformer initialValue() {
+			synchronized (transformerFactory) {
+				try {
+					final Transformer transformer = transformerFactory.newTransformer();
+					transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+					transformer.setOutputProperty(OutputKeys.INDENT, "no");
+					transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+					return transformer;
+				} catch (final TransformerConfigurationException e) {
+					throw new InternalError("Error creating Transformer");
+				}
+			}
 		}
+	};
+
+	static {
+		docBuilderFactory = DocumentBuilderFactory.newInstance();
+		docBuilderFactory.setIgnoringElementContentWhitespace(true);
+		docBuilderFactory.setIgnoringComments(true);
+
+		transformerFactory = TransformerFactory.newInstance();
 	}
 	
 	/**
@@ -66,7 +94,7 @@ public final class XMLUtil {
 	 * @return a new Document
 	 */
 	public static final Document newDocument() {
-		return docBuilder.newDocument();
+		return docBuilder.get().newDocument();
 	}
 	
 	/**
@@ -78,7 +106,7 @@ public final class XMLUtil {
 	public static final Element fromString(final String element) {
 		try {
 			final Document doc = newDocument();
-			transformer.transform(new StreamSource(new StringReader(element)), new DOMResult(doc));
+			transformer.get().transform(new StreamSource(new StringReader(element)), new DOMResult(doc));
 			return doc.getDocumentElement();
 		} catch (final TransformerException e) {
 			throw new InternalError("Transformer error");
@@ -94,7 +122,7 @@ public final class XMLUtil {
 	public static final String toString(final Element element) {
 		try {
 			final StringWriter buffer = new StringWriter();
-			transformer.transform(new DOMSource(element), new StreamResult(buffer));
+			transformer.get().transform(new DOMSource(element), new StreamResult(buffer));
 			return buffer.toString();
 		} catch (final TransformerException e) {
 			throw new InternalError("Transformer error");
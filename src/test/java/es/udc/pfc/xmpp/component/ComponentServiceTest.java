@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Message;
+import es.udc.pfc.xmpp.stanza.Presence;
+
+public class ComponentServiceTest {
+
+	private static final String DOMAIN = "component.example.com";
+	private static final int CONNECTIONS = 3;
+	private static final long TIMEOUT = 5000;
+
+	private XEP0114TestServer server;
+	private TestComponent component;
+	private ComponentService service;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new XEP0114TestServer(DOMAIN);
+		component = new TestComponent(CONNECTIONS);
+		service = new ComponentService(component, server.getAddress(), DOMAIN, "secret");
+		service.setConnections(CONNECTIONS);
+		service.startAndWait();
+
+		assertTrue("Not logged in", component.connected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try {
+			service.stop().get(TIMEOUT, TimeUnit.MILLISECONDS);
+		} finally {
+			server.close();
+		}
+	}
+
+	private XEP0114TestServer.Connection sendAndFind(final String to, final String body) throws Exception {
+		final Message message = new Message(body);
+		message.setTo(JID.jid(to));
+		component.send(message).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		final XEP0114TestServer.Connection connection = server.awaitReceived("<body>" + body + "</body>", TIMEOUT);
+		assertNotNull("Not received: " + body, connection);
+		return connection;
+	}
+
+	@Test
+	public void testInitializedBeforeConnected() {
+		assertEquals(0, component.connectedBeforeInit.get());
+	}
+
+	@Test
+	public void testSameBareJIDUsesSameConnection() throws Exception {
+		final XEP0114TestServer.Connection connection = sendAndFind("user@example.com", "first");
+
+		for (int i = 0; i < 10; i++) {
+			assertSame(connection, sendAndFind("user@example.com/resource" + i, "again" + i));
+		}
+	}
+
+	@Test
+	public void testBareJIDsAreSpread() throws Exception {
+		final Set<XEP0114TestServer.Connection> used = Sets.newIdentityHashSet();
+		for (int i = 0; i < 30; i++) {
+			used.add(sendAndFind("user" + i + "@example.com", "message" + i));
+		}
+
+		assertTrue("Only one connection used", used.size() > 1);
+	}
+
+	@Test
+	public void testFailover() throws Exception {
+		final XEP0114TestServer.Connection dropped = sendAndFind("user@example.com", "before");
+		dropped.close();
+		assertTrue("Not disconnected", component.disconnected.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		final XEP0114TestServer.Connection next = sendAndFind("user@example.com", "after");
+		assertNotSame(dropped, next);
+		assertSame(next, sendAndFind("user@example.com/resource", "again"));
+	}
+
+	private static final class TestComponent extends AbstractXMPPComponent {
+
+		private final CountDownLatch connected;
+		private final Semaphore disconnected;
+		private final AtomicInteger connectedBeforeInit;
+
+		private TestComponent(final int connections) {
+			connected = new CountDownLatch(connections);
+			disconnected = new Semaphore(0);
+			connectedBeforeInit = new AtomicInteger();
+		}
+
+		@Override
+		public String getName() {
+			return "Test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Test component";
+		}
+
+		@Override
+		protected void handleMessage(final Message message) {
+		}
+
+		@Override
+		protected void handlePresence(final Presence presence) {
+		}
+
+		@Override
+		public void connected() {
+			super.connected();
+			if (getJID() == null) {
+				connectedBeforeInit.incrementAndGet();
+			}
+			connected.countDown();
+		}
+
+		@Override
+		public void disconnected() {
+			super.disconnected();
+			disconnected.release();
+		}
+
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.component;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.IQIdGenerator;
+
+public class IQCorrelationTableTest {
+
+	private static final long TIMEOUT = 1;
+	private static final TimeUnit UNIT = TimeUnit.MINUTES;
+
+	private Timer timer;
+	private IQIdGenerator generator;
+	private IQCorrelationTable table;
+
+	@Before
+	public void setUp() {
+		timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS);
+		generator = new IQIdGenerator(42);
+		table = new IQCorrelationTable(timer, generator);
+	}
+
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	@Test
+	public void testGeneratedIds() {
+		final List<String> ids = Lists.newArrayList();
+		final List<SettableFuture<IQ>> futures = Lists.newArrayList();
+		for (int i = 0; i < 1000; i++) {
+			final String id = generator.nextId();
+			final SettableFuture<IQ> future = SettableFuture.create();
+			assertNull(table.putIfAbsent(id, future, TIMEOUT, UNIT));
+			ids.add(id);
+			futures.add(future);
+		}
+
+		// Every other request first, so removals leave gaps behind
+		for (int i = 0; i < ids.size(); i += 2) {
+			assertSame(futures.get(i), table.remove(ids.get(i)));
+		}
+		for (int i = 1; i < ids.size(); i += 2) {
+			assertSame(futures.get(i), table.remove(ids.get(i)));
+		}
+		for (final String id : ids) {
+			assertNull(table.remove(id));
+		}
+	}
+
+	@Test
+	public void testForeignIds() {
+		final SettableFuture<IQ> foreign = SettableFuture.create();
+		final SettableFuture<IQ> generated = SettableFuture.create();
+		final String id = generator.nextId();
+		final String other = new IQIdGenerator(7).format(generator.parse(id));
+
+		assertNull(table.putIfAbsent(id, generated, TIMEOUT, UNIT));
+		assertNull(table.putIfAbsent(other, foreign, TIMEOUT, UNIT));
+		assertSame(foreign, table.remove(other));
+		assertSame(generated, table.remove(id));
+	}
+
+	@Test
+	public void testPutIfAbsent() {
+		final SettableFuture<IQ> first = SettableFuture.create();
+		final SettableFuture<IQ> second = SettableFuture.create();
+		final String id = generator.nextId();
+
+		assertNull(table.putIfAbsent(id, first, TIMEOUT, UNIT));
+		assertSame(first, table.putIfAbsent(id, second, TIMEOUT, UNIT));
+		assertNull(table.putIfAbsent("foreign", first, TIMEOUT, UNIT));
+		assertSame(first, table.putIfAbsent("foreign", second, TIMEOUT, UNIT));
+	}
+
+	@Test
+	public void testRemoveWithFuture() {
+		final SettableFuture<IQ> first = SettableFuture.create();
+		final SettableFuture<IQ> second = SettableFuture.create();
+		final String id = generator.nextId();
+
+		assertNull(table.putIfAbsent(id, first, TIMEOUT, UNIT));
+		assertFalse(table.remove(id, second));
+		assertTrue(table.remove(id, first));
+		assertFalse(table.remove(id, first));
+
+		assertNull(table.putIfAbsent("foreign", first, TIMEOUT, UNIT));
+		assertFalse(table.remove("foreign", second));
+		assertTrue(table.remove("foreign", first));
+	}
+
+	@Test
+	public void testFailAll() throws InterruptedException {
+		final SettableFuture<IQ> generated = SettableFuture.create();
+		final SettableFuture<IQ> foreign = SettableFuture.create();
+		final String id = generator.nextId();
+		table.putIfAbsent(id, generated, TIMEOUT, UNIT);
+		table.putIfAbsent("foreign", foreign, TIMEOUT, UNIT);
+
+		final Exception cause = new Exception("Disconnected");
+		table.failAll(cause);
+
+		assertFailedWith(cause, generated);
+		assertFailedWith(cause, foreign);
+		assertNull(table.remove(id));
+		assertNull(table.remove("foreign"));
+	}
+
+	@Test
+	public void testTimeout() throws InterruptedException {
+		final SettableFuture<IQ> generated = SettableFuture.create();
+		final SettableFuture<IQ> foreign = SettableFuture.create();
+		final String id = generator.nextId();
+		table.putIfAbsent(id, generated, 10, TimeUnit.MILLISECONDS);
+		table.putIfAbsent("foreign", foreign, 10, TimeUnit.MILLISECONDS);
+
+		assertTrue(failure(generated) instanceof TimeoutException);
+		assertTrue(failure(foreign) instanceof TimeoutException);
+		assertNull(table.remove(id));
+		assertNull(table.remove("foreign"));
+	}
+
+	private static void assertFailedWith(final Throwable cause, final SettableFuture<IQ> future) throws InterruptedException {
+		assertSame(cause, failure(future));
+	}
+
+	private static Throwable failure(final SettableFuture<IQ> future) throws InterruptedException {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+		} catch (final ExecutionException e) {
+			return e.getCause();
+		} catch (final TimeoutException e) {
+			throw new AssertionError("Request did not fail");
+		}
+		throw new AssertionError("Request did not fail");
+	}
+
+}
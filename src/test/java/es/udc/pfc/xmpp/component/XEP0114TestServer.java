@@ -0,0 +1,186 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jboss.netty.util.CharsetUtil;
+
+import es.udc.pfc.xmpp.stanza.XMPPNamespaces;
+
+/**
+ * Minimal in-process stand-in for the component port of an XMPP server.
+ * 
+ * Each connection is answered with a stream header and accepted as soon as
+ * it sends a handshake, without checking it. Anything received is kept, so
+ * tests can check which connection each stanza was sent through. A stream
+ * end is answered with another one, and the connection is then closed.
+ */
+final class XEP0114TestServer implements Closeable {
+
+	private final String domain;
+	private final ServerSocket serverSocket;
+	private final List<Connection> connections;
+
+	XEP0114TestServer(final String domain) throws IOException {
+		this.domain = domain;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		connections = new CopyOnWriteArrayList<Connection>();
+
+		final Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "XEP0114TestServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	InetSocketAddress getAddress() {
+		return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Waits until a connection receives some text.
+	 * 
+	 * @param text the text to wait for
+	 * @param timeoutMillis the time to wait, in milliseconds
+	 * @return the connection which received the text, or {@code null} if none did in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	Connection awaitReceived(final String text, final long timeoutMillis) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		do {
+			for (final Connection connection : connections) {
+				if (connection.hasReceived(text))
+					return connection;
+			}
+			Thread.sleep(10);
+		} while (System.currentTimeMillis() < deadline);
+
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		for (final Connection connection : connections) {
+			connection.close();
+		}
+	}
+
+	private void accept() {
+		try {
+			for (int id = 0;; id++) {
+				final Connection connection = new Connection(serverSocket.accept(), "stream" + id);
+				connections.add(connection);
+
+				final Thread reader = new Thread(connection, "XEP0114TestServer-" + id);
+				reader.setDaemon(true);
+				reader.start();
+			}
+		} catch (final IOException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * A connection accepted by the server.
+	 */
+	final class Connection implements Runnable {
+
+		private final Socket socket;
+		private final String streamID;
+		private final StringBuffer received;
+
+		private Connection(final Socket socket, final String streamID) {
+			this.socket = socket;
+			this.streamID = streamID;
+			received = new StringBuffer();
+		}
+
+		boolean hasReceived(final String text) {
+			return received.indexOf(text) >= 0;
+		}
+
+		/**
+		 * Drops the connection, as if the server had lost it.
+		 * 
+		 * @throws IOException if the socket can't be closed
+		 */
+		void close() throws IOException {
+			socket.close();
+		}
+
+		@Override
+		public void run() {
+			try {
+				final InputStream input = socket.getInputStream();
+				final OutputStream output = socket.getOutputStream();
+				final byte[] buffer = new byte[4096];
+				boolean opened = false;
+				boolean loggedIn = false;
+
+				int read;
+				while ((read = input.read(buffer)) > 0) {
+					received.append(new String(buffer, 0, read, CharsetUtil.UTF_8));
+
+					if (!opened) {
+						final int header = received.indexOf("<stream:stream");
+						if (header >= 0 && received.indexOf(">", header) >= 0) {
+							opened = true;
+							write(output, "<stream:stream xmlns:stream='" + XMPPNamespaces.STREAM + "' xmlns='" + XMPPNamespaces.ACCEPT + "' from='" + domain + "' id='" + streamID + "'>");
+						}
+					}
+					if (opened && !loggedIn && hasReceived("</handshake>")) {
+						loggedIn = true;
+						write(output, "<handshake/>");
+					}
+					if (opened && hasReceived("</stream:stream>")) {
+						write(output, "</stream:stream>");
+						break;
+					}
+				}
+			} catch (final IOException e) {
+				// Closed
+			} finally {
+				try {
+					socket.close();
+				} catch (final IOException e) {
+					// Already closed
+				}
+			}
+		}
+
+		private void write(final OutputStream output, final String data) throws IOException {
+			output.write(data.getBytes(CharsetUtil.UTF_8));
+			output.flush();
+		}
+
+	}
+
+}
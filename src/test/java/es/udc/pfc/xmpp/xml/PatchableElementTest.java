@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class PatchableElementTest {
+
+	private static final String NAMESPACE = "jabber:component:accept";
+	private static final String XML = "<message xmlns='jabber:component:accept' from='a@example.com' to='b@example.com' type='chat'><body>hi</body></message>";
+
+	@Test
+	public void testWithValue() {
+		final PatchableElement patchable = PatchableElement.of(CompactXMLElement.fromString(XML), "to", NAMESPACE);
+
+		assertEquals("<message to=\"c@example.com\" from=\"a@example.com\" type=\"chat\"><body>hi</body></message>", patchable.withValue("c@example.com").toString(CharsetUtil.UTF_8));
+		assertEquals("<message to=\"d&amp;@example.com\" from=\"a@example.com\" type=\"chat\"><body>hi</body></message>", patchable.withValue("d&@example.com").toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testElementIsNotModified() {
+		final CompactXMLElement element = (CompactXMLElement) CompactXMLElement.fromString(XML);
+		final byte[] rawBytes = XML.getBytes(CharsetUtil.UTF_8);
+		element.setRawBytes(rawBytes);
+
+		PatchableElement.of(element, "to", NAMESPACE);
+
+		assertEquals(ImmutableList.of("from", "to", "type"), element.getAttributes().keySet().asList());
+		assertEquals("b@example.com", element.getAttribute("to"));
+		assertSame(rawBytes, element.getRawBytes());
+	}
+
+	@Test
+	public void testDOMElementIsNotModified() {
+		final XMLElement element = XMLElementImpl.fromString(XML);
+
+		final PatchableElement patchable = PatchableElement.of(element, "to", NAMESPACE);
+
+		assertEquals("<message to=\"c@example.com\" from=\"a@example.com\" type=\"chat\"><body>hi</body></message>", patchable.withValue("c@example.com").toString(CharsetUtil.UTF_8));
+		assertEquals("b@example.com", element.getAttribute("to"));
+	}
+
+}
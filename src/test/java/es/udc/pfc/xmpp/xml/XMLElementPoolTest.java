@@ -0,0 +1,157 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import es.udc.pfc.xmpp.stanza.Message;
+import es.udc.pfc.xmpp.stanza.Stanza;
+
+public class XMLElementPoolTest {
+
+	private static final String FIRST = "<message to='a@example.com'><body>first</body></message>";
+	private static final String SECOND = "<message to='b@example.com'><body>second</body></message>";
+
+	private static XMLElement parse(final String xml) {
+		return XMLStreamBuilder.createPooled().parse(xml);
+	}
+
+	private static void assertReleased(final XMLElement element) {
+		try {
+			element.getTagName();
+			fail("Released element was still readable");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+		try {
+			element.getText();
+			fail("Released element was still readable");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+		try {
+			element.toString();
+			fail("Released element was still readable");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testParsedElementsArePooled() {
+		final XMLElement element = parse(FIRST);
+		assertTrue(XMLElementPool.isPooled(element));
+		assertTrue(XMLElementPool.release(element));
+	}
+
+	@Test
+	public void testReleasedRootThrows() {
+		final XMLElement element = parse(FIRST);
+		XMLElementPool.release(element);
+
+		assertReleased(element);
+	}
+
+	@Test
+	public void testKeptChildThrows() {
+		final XMLElement element = parse(FIRST);
+		final XMLElement body = element.getFirstChild("body");
+		XMLElementPool.release(element);
+
+		assertReleased(body);
+	}
+
+	@Test
+	public void testKeptChildThrowsAfterReuse() {
+		final XMLElement element = parse(FIRST);
+		final XMLElement body = element.getFirstChild("body");
+		XMLElementPool.release(element);
+
+		final XMLElement next = parse(SECOND);
+		assertNotSame(element, next);
+		assertNotSame(body, next.getFirstChild("body"));
+
+		assertReleased(element);
+		assertReleased(body);
+		assertEquals("b@example.com", next.getAttribute("to"));
+		assertEquals("second", next.getChildText("body"));
+		XMLElementPool.release(next);
+	}
+
+	@Test
+	public void testAddedChildThrows() {
+		final XMLElement element = parse(FIRST);
+		final XMLElement added = element.addChild("subject");
+		XMLElementPool.release(element);
+
+		assertReleased(added);
+	}
+
+	@Test
+	public void testOtherWrapperThrows() {
+		final XMLElement element = parse(FIRST);
+		final Stanza first = Stanza.fromElement(element);
+		final Stanza second = Stanza.fromElement(element);
+		assertTrue(first.release());
+
+		try {
+			((Message) second).getBody();
+			fail("Released stanza was still readable");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRetainedElementIsKept() {
+		final XMLElement element = parse(FIRST);
+		XMLElementPool.retain(element);
+
+		assertFalse(XMLElementPool.release(element));
+		assertEquals("first", element.getChildText("body"));
+		assertTrue(XMLElementPool.release(element));
+		assertReleased(element);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleaseTwice() {
+		final XMLElement element = parse(FIRST);
+		XMLElementPool.release(element);
+		XMLElementPool.release(element);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRetainReleased() {
+		final XMLElement element = parse(FIRST);
+		XMLElementPool.release(element);
+		XMLElementPool.retain(element);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleaseStanzaTwice() {
+		final Stanza stanza = Stanza.fromElement(parse(FIRST));
+		stanza.release();
+		stanza.release();
+	}
+
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.SortedMap;
+
+import javax.xml.XMLConstants;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+public class XMLSerializerTest {
+
+	private static final ImmutableList<String> DOCUMENTS = ImmutableList.of(
+			"<message xmlns='jabber:component:accept' to='a@example.com' type='chat'><body>a &amp; b &lt; c</body><x xmlns='jabber:x:data' type='form'><field var='f'>v</field></x></message>",
+			"<p:a xmlns:p='urn:p' xmlns='urn:d'><p:b p:attr='1' other='&quot;2&quot;'/><c xmlns=''><d/></c><e xml:lang='en'>text</e></p:a>",
+			"<a xmlns='urn:a'><b xmlns='urn:b'><c xmlns='urn:a' xmlns:q='urn:q'><q:d q:e='x'>y</q:d></c></b></a>");
+
+	/**
+	 * Returns the kinds of buffers text is written to: growing heap and
+	 * direct buffers, and a heap buffer with an array offset and some
+	 * content already written.
+	 */
+	private static List<ChannelBuffer> buffers() {
+		final ChannelBuffer offset = ChannelBuffers.wrappedBuffer(new byte[8192], 16, 8000);
+		offset.clear();
+		offset.writeByte('x');
+
+		return ImmutableList.of(ChannelBuffers.dynamicBuffer(1, HeapChannelBufferFactory.getInstance()), ChannelBuffers.dynamicBuffer(1, DirectChannelBufferFactory.getInstance()), offset);
+	}
+
+	private static void assertEscaped(final String expected, final String text, final boolean attribute) {
+		assertEscaped(expected.getBytes(CharsetUtil.UTF_8), text, attribute);
+	}
+
+	private static void assertEscaped(final byte[] expected, final String text, final boolean attribute) {
+		for (final ChannelBuffer buffer : buffers()) {
+			final int start = buffer.writerIndex();
+			XMLSerializer.writeEscaped(buffer, text, attribute);
+
+			final byte[] written = new byte[buffer.writerIndex() - start];
+			buffer.getBytes(start, written);
+			assertArrayEquals(buffer.toString(), expected, written);
+		}
+	}
+
+	private static byte[] bytes(final int... values) {
+		final byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testPlainText() {
+		assertEscaped("", "", false);
+		assertEscaped("plain text", "plain text", false);
+		assertEscaped("plain text", "plain text", true);
+	}
+
+	@Test
+	public void testMarkupInText() {
+		assertEscaped("a &lt;b&gt; &amp; \"c\" 'd'", "a <b> & \"c\" 'd'", false);
+	}
+
+	@Test
+	public void testMarkupInAttribute() {
+		assertEscaped("a &lt;b&gt; &amp; &quot;c&quot; 'd'", "a <b> & \"c\" 'd'", true);
+	}
+
+	@Test
+	public void testControlCharactersInText() {
+		assertEscaped("a\tb\nc&#13;d", "a\tb\nc\rd", false);
+	}
+
+	@Test
+	public void testControlCharactersInAttribute() {
+		assertEscaped("a&#9;b&#10;c&#13;d", "a\tb\nc\rd", true);
+	}
+
+	@Test
+	public void testMultiByteCharacters() {
+		// e acute, euro sign
+		assertEscaped(bytes('a', 0xC3, 0xA9, 'b', 0xE2, 0x82, 0xAC, 'c'), "a\u00E9b\u20ACc", false);
+		assertEscaped(bytes(0xC3, 0xA9, '&', 'a', 'm', 'p', ';', 0xE2, 0x82, 0xAC), "\u00E9&\u20AC", true);
+	}
+
+	@Test
+	public void testSurrogatePairs() {
+		// U+1F600, as a single 4-byte sequence
+		assertEscaped(bytes('a', 0xF0, 0x9F, 0x98, 0x80, 'b'), "a\uD83D\uDE00b", false);
+		assertEscaped(bytes(0xF0, 0x9F, 0x98, 0x80, 0xF0, 0x9F, 0x98, 0x80), "\uD83D\uDE00\uD83D\uDE00", true);
+	}
+
+	@Test
+	public void testUnpairedSurrogates() {
+		assertEscaped("a?b", "a\uD83Db", false);
+		assertEscaped("a?b", "a\uDE00b", false);
+		assertEscaped("a?", "a\uD83D", true);
+		assertEscaped("??", "\uDE00\uD83D", false);
+	}
+
+	@Test
+	public void testLongText() {
+		final String run = Strings.repeat("0123456789", 200);
+		assertEscaped(run + "&amp;" + run + "&lt;", run + "&" + run + "<", false);
+	}
+
+	@Test
+	public void testElement() {
+		final String xml = "<a xmlns='urn:test' b='&quot;x&amp;y&#9;'>1 &lt; 2 &amp;&#13; &gt;<c d='\u00E9'/></a>";
+		final String expected = "<a xmlns=\"urn:test\" b=\"&quot;x&amp;y&#9;\">1 &lt; 2 &amp;&#13; &gt;<c d=\"\u00E9\"/></a>";
+
+		final XMLElement compact = CompactXMLElement.fromString(xml);
+		assertEquals(expected, XMLSerializer.serialize(compact).toString(CharsetUtil.UTF_8));
+		assertEquals(expected, compact.toString());
+
+		final XMLElement dom = XMLElementImpl.fromString(xml);
+		assertEquals(expected, XMLSerializer.serialize(dom).toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testMatchesTransformer() {
+		for (final String xml : DOCUMENTS) {
+			final Element element = XMLUtil.fromString(xml);
+			final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+			XMLSerializer.write(element, buffer, null);
+
+			// Declarations may differ, but both must parse into the same names, attributes and text
+			final String expected = canonical(element);
+			assertEquals(xml, expected, canonical(XMLUtil.fromString(XMLUtil.toString(element))));
+			assertEquals(xml, expected, canonical(XMLUtil.fromString(buffer.toString(CharsetUtil.UTF_8))));
+		}
+	}
+
+	private static String canonical(final Element element) {
+		final StringBuilder builder = new StringBuilder();
+		canonical(element, builder);
+		return builder.toString();
+	}
+
+	private static void canonical(final Element element, final StringBuilder builder) {
+		builder.append('{').append(Strings.nullToEmpty(element.getNamespaceURI())).append('}').append(element.getLocalName());
+
+		final SortedMap<String, String> attributes = Maps.newTreeMap();
+		final NamedNodeMap map = element.getAttributes();
+		for (int i = 0; i < map.getLength(); i++) {
+			final Node attribute = map.item(i);
+			if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+				attributes.put("{" + Strings.nullToEmpty(attribute.getNamespaceURI()) + "}" + attribute.getLocalName(), attribute.getNodeValue());
+			}
+		}
+		builder.append(attributes).append('(');
+
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				canonical((Element) child, builder);
+			} else if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+				builder.append(child.getNodeValue());
+			}
+		}
+		builder.append(')');
+	}
+
+	@Test
+	public void testInheritedNamespace() {
+		final XMLElement element = CompactXMLElement.fromString("<a xmlns='urn:test'><b/><c xmlns='urn:other'/></a>");
+
+		assertEquals("<a><b/><c xmlns=\"urn:other\"/></a>", XMLSerializer.serialize(element, "urn:test").toString(CharsetUtil.UTF_8));
+		assertEquals("<a xmlns=\"urn:test\"><b/><c xmlns=\"urn:other\"/></a>", XMLSerializer.serialize(element, "urn:other").toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testUndeclaredNamespace() {
+		final String expected = "<a xmlns=\"urn:test\"><b xmlns=\"\"><c/></b><d/></a>";
+
+		for (final XMLModel model : XMLModel.values()) {
+			final XMLElement element = XMLStreamBuilder.create(model).parse("<a xmlns='urn:test'><b xmlns=''><c/></b><d/></a>");
+			final String xml = XMLSerializer.serialize(element).toString(CharsetUtil.UTF_8);
+			assertEquals(model.toString(), expected, xml);
+
+			// Written again after parsing, no element is moved into the parent's namespace
+			final XMLElement parsed = XMLStreamBuilder.create(model).parse(xml);
+			assertNull(parsed.getFirstChild("b").getNamespace());
+			assertNull(parsed.getFirstChild("b").getFirstChild("c").getNamespace());
+			assertEquals("urn:test", parsed.getFirstChild("d").getNamespace());
+			assertEquals(expected, XMLSerializer.serialize(parsed).toString(CharsetUtil.UTF_8));
+		}
+	}
+
+	@Test
+	public void testPrefixesInScope() {
+		final XMLElement element = CompactXMLElement.fromString("<a xmlns:p='urn:p'><p:b xmlns:p='urn:p'/><p:c xmlns:p='urn:q'/></a>");
+
+		assertEquals("<a xmlns:p=\"urn:p\"><p:b/><p:c xmlns:p=\"urn:q\"/></a>", XMLSerializer.serialize(element).toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testAddedChildInheritsNamespace() {
+		final XMLElement element = CompactXMLElement.fromString("<a xmlns='urn:test'/>");
+		element.addChild("b");
+
+		assertEquals("<a xmlns=\"urn:test\"><b/></a>", XMLSerializer.serialize(element).toString(CharsetUtil.UTF_8));
+	}
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2012 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.xmpp.xml;
+
+import static org.junit.Assert.assertEquals;
+
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class XMLTemplateTest {
+
+	private static final String SKELETON = "<message xmlns='jabber:component:accept' to='${to}' type='chat'><body>${body}</body></message>";
+
+	@Test
+	public void testApply() {
+		final XMLTemplate template = XMLTemplate.compile(CompactXMLElement.fromString(SKELETON));
+
+		assertEquals(ImmutableList.of("to", "body"), template.getHoleNames());
+		assertEquals("<message to=\"a&quot;@example.com\" type=\"chat\"><body>\"x\" &lt; y</body></message>",
+				template.apply(ImmutableMap.of("to", "a\"@example.com", "body", "\"x\" < y")).toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testStreamNamespaceInScope() {
+		assertEquals("<message to=\"${to}\" type=\"chat\"><body>${body}</body></message>", XMLTemplate.compile(CompactXMLElement.fromString(SKELETON)).toString());
+		assertEquals("<message to=\"${to}\" type=\"chat\"><body>${body}</body></message>", XMLTemplate.compile(XMLElementImpl.fromString(SKELETON)).toString());
+	}
+
+	@Test
+	public void testOtherNamespace() {
+		assertEquals("<message xmlns=\"jabber:component:accept\" to=\"${to}\" type=\"chat\"><body>${body}</body></message>",
+				XMLTemplate.compile(CompactXMLElement.fromString(SKELETON), null).toString());
+	}
+
+}